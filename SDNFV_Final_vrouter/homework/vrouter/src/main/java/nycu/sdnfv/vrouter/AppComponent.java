@@ -21,8 +21,14 @@ import static org.onosproject.net.config.basics.SubjectFactories.APP_SUBJECT_FAC
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Dictionary;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.onlab.packet.DHCP;
 import org.onlab.packet.EthType;
@@ -36,6 +42,7 @@ import org.onlab.packet.TpPort;
 import org.onlab.packet.UDP;
 import org.onlab.packet.DHCP.MsgType;
 import org.onlab.packet.dhcp.DhcpOption;
+import org.onosproject.cfg.ComponentConfigService;
 import org.onosproject.core.ApplicationId;
 import org.onosproject.core.CoreService;
 import org.onosproject.net.ConnectPoint;
@@ -46,13 +53,31 @@ import org.onosproject.net.config.ConfigFactory;
 import org.onosproject.net.config.NetworkConfigEvent;
 import org.onosproject.net.config.NetworkConfigListener;
 import org.onosproject.net.config.NetworkConfigRegistry;
+import org.onosproject.net.edge.EdgePortService;
+import org.onosproject.net.flow.DefaultFlowRule;
 import org.onosproject.net.flow.DefaultTrafficSelector;
 import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowId;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleEvent;
+import org.onosproject.net.flow.FlowRuleListener;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleService;
 import org.onosproject.net.flow.TrafficSelector;
 import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.flow.instructions.Instruction;
+import org.onosproject.net.flow.instructions.L2ModificationInstruction.L2SubType;
+import org.onosproject.net.flow.instructions.L2ModificationInstruction.ModEtherInstruction;
+import org.onosproject.net.host.HostEvent;
+import org.onosproject.net.host.HostListener;
 import org.onosproject.net.host.HostService;
+import org.onosproject.net.host.InterfaceIpAddress;
 import org.onosproject.net.intent.Intent;
 import org.onosproject.net.intent.IntentService;
+import org.onosproject.net.intent.IntentUtils;
+import org.onosproject.net.intent.Key;
+import org.onosproject.net.intent.MultiPointToSinglePointIntent;
 import org.onosproject.net.intent.PointToPointIntent;
 import org.onosproject.net.intf.Interface;
 import org.onosproject.net.intf.InterfaceService;
@@ -63,24 +88,65 @@ import org.onosproject.net.packet.PacketPriority;
 import org.onosproject.net.packet.PacketProcessor;
 import org.onosproject.net.packet.PacketService;
 import org.onosproject.routeservice.ResolvedRoute;
+import org.onosproject.routeservice.RouteEvent;
+import org.onosproject.routeservice.RouteListener;
 import org.onosproject.routeservice.RouteService;
+import org.onosproject.routeservice.RouteTableId;
+import org.osgi.service.component.ComponentContext;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
 import shaded.org.apache.maven.model.Build;
 
+import static org.onlab.util.Tools.get;
+import static org.onlab.util.Tools.getIntegerProperty;
+import static org.onlab.util.Tools.isPropertyEnabled;
+
 /** Sample Network Configuration Service Application. **/
-@Component(immediate = true)
+@Component(immediate = true,
+           service = {AppComponent.class},
+           property = {
+               "aggregateRoutes:Boolean=false",
+               "proactiveRoutes:Boolean=false",
+               "hostCacheSize:Integer=4096",
+               "intentFlushInterval:Integer=50",
+               "intentBatchSize:Integer=500",
+               "singleHopFlowRules:Boolean=false",
+               "matchRoutePrefix:Boolean=false",
+               "traceCategories=" + AppComponent.TRACE_CATEGORIES_DEFAULT,
+           })
 public class AppComponent {
     private final Logger log = LoggerFactory.getLogger(getClass());
 
+    // Route intents are prioritized by prefix length so the longest prefix wins in the data plane.
+    private static final int ROUTE_PRIORITY_OFFSET = 100;
+    private static final int ROUTE_PRIORITY_MULTIPLIER = 5;
+
+    // Fast path flow rules take the place of a point to point intent and expire once idle.
+    private static final int FAST_PATH_PRIORITY = Intent.DEFAULT_INTENT_PRIORITY;
+    private static final int FAST_PATH_TIMEOUT = 60;
+
+    // Packet events are only counted by default; intent installs and drops are traced at a low rate.
+    static final String TRACE_CATEGORIES_DEFAULT = "l2:0:0,l3:0:0,inbound:1:10,outbound:1:10,drop:100:1";
+
     private final NameConfigListener cfgListener = new NameConfigListener();
 
+    private final InternalRouteListener routeListener = new InternalRouteListener();
+
+    private final InternalHostListener hostListener = new InternalHostListener();
+
+    private final InternalFlowRuleListener flowRuleListener = new InternalFlowRuleListener();
+
     private final ConfigFactory<ApplicationId, VRouterConfig> factory = new ConfigFactory<ApplicationId, VRouterConfig>(
         APP_SUBJECT_FACTORY, VRouterConfig.class, "router") {
         @Override
@@ -110,6 +176,15 @@ public class AppComponent {
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     protected InterfaceService intfService;
 
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected EdgePortService edgePortService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected FlowRuleService flowRuleService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected ComponentConfigService componentConfigService;
+
     private ApplicationId appId;
 
     private PacketProcessor processor;
@@ -121,13 +196,65 @@ public class AppComponent {
     private List<IpAddress> peers;
 
     private List<MacAddress> installedMacs = new ArrayList<>();
-    private List<Intent> installedIntents = new ArrayList<>(); 
+
+    private IntentRegistry intentRegistry;
+    private IntentBatcher intentBatcher;
+
+    /** Maximum time in milliseconds an intent operation waits in the submission pipeline. */
+    private int intentFlushInterval = 50;
+
+    /** Number of queued intent operations that triggers an early flush. */
+    private int intentBatchSize = 500;
+
+    private volatile ReconcileReport lastReconcileReport;
+
+    /** Write flow rules directly for flows entering and leaving on the same device. */
+    private boolean singleHopFlowRules = false;
+
+    private final LatencyStats fastPathHandling = new LatencyStats();
+
+    // Fast path rules written and not removed since, so a burst of punted packets writes a rule once.
+    private final Map<FlowId, FlowRule> fastPathRules = Maps.newConcurrentMap();
+    private final LongAdder fastPathSuppressed = new LongAdder();
+
+    /** Match outbound flows on the route prefix only, instead of the source and destination hosts. */
+    private boolean matchRoutePrefix = false;
+
+    /** Per-category sample rate and rate limit of the packet processor log lines. */
+    private String traceCategories = TRACE_CATEGORIES_DEFAULT;
+
+    private final EventTrace trace = new EventTrace(TRACE_CATEGORIES_DEFAULT);
+
+    /** Install one MultiPointToSinglePointIntent per route prefix instead of one intent per flow. */
+    private boolean aggregateRoutes = false;
+
+    /**
+     * Install route intents from RouteService events before any traffic is punted.
+     * Turning it off withdraws the route intents; with aggregateRoutes on, they are
+     * installed again by the next punted packet of each prefix.
+     */
+    private boolean proactiveRoutes = false;
+
+    private final Map<IpPrefix, MultiPointToSinglePointIntent> routeIntents = Maps.newConcurrentMap();
+
+    private final Ip4Fib fib = new Ip4Fib();
+
+    private final HostCache hostCache = new HostCache(4096);
 
     @Activate
-    protected void activate() {
+    protected void activate(ComponentContext context) {
+        componentConfigService.registerProperties(getClass());
+        modified(context);
         appId = coreService.registerApplication("nycu.sdnfv.vrouter");
+        intentBatcher = new IntentBatcher(intentService, intentFlushInterval, intentBatchSize);
+        intentRegistry = new IntentRegistry(intentService, intentBatcher, appId);
+        intentRegistry.activate();
         cfgService.addListener(cfgListener);
         cfgService.registerConfigFactory(factory);
+        routeService.addListener(routeListener);
+        hostService.addListener(hostListener);
+        hostService.getHosts().forEach(hostCache::update);
+        flowRuleService.addListener(flowRuleListener);
 
         // Initialize a packet processor
         processor = new VRouterProcessor();
@@ -139,18 +266,612 @@ public class AppComponent {
 
     @Deactivate
     protected void deactivate() {
+        componentConfigService.unregisterProperties(getClass(), false);
+        routeService.removeListener(routeListener);
+        hostService.removeListener(hostListener);
+        flowRuleService.removeListener(flowRuleListener);
         cfgService.removeListener(cfgListener);
         cfgService.unregisterConfigFactory(factory);
         packetService.removeProcessor(processor);
         this.cancelPackets();
 
-        for (Intent intent : installedIntents) {
-            intentService.withdraw(intent);
-        }
+        withdrawRouteIntents();
+        intentRegistry.withdrawAll();
+        intentRegistry.deactivate();
+        intentBatcher.shutdown();
+        fib.clear();
+        hostCache.clear();
+        fastPathRules.clear();
 
         log.info("Stopped");
     }
 
+    @Modified
+    public void modified(ComponentContext context) {
+        Dictionary<?, ?> properties = context != null ? context.getProperties() : null;
+        if (properties == null) {
+            return;
+        }
+
+        Boolean aggregate = isPropertyEnabled(properties, "aggregateRoutes");
+        if (aggregate != null && aggregate != aggregateRoutes) {
+            aggregateRoutes = aggregate;
+            log.info("Route aggregation is {}", aggregateRoutes ? "enabled" : "disabled");
+        }
+
+        Boolean proactive = isPropertyEnabled(properties, "proactiveRoutes");
+        if (proactive != null && proactive != proactiveRoutes) {
+            proactiveRoutes = proactive;
+            log.info("Proactive route installation is {}", proactiveRoutes ? "enabled" : "disabled");
+            if (proactiveRoutes) {
+                installResolvedRoutes();
+            } else {
+                withdrawRouteIntents();
+            }
+        }
+
+        int cacheSize = getIntegerProperty(properties, "hostCacheSize", hostCache.maxSize());
+        if (cacheSize > 0 && cacheSize != hostCache.maxSize()) {
+            hostCache.setMaxSize(cacheSize);
+            log.info("Host cache size set to {}", cacheSize);
+        }
+
+        int flushInterval = getIntegerProperty(properties, "intentFlushInterval", intentFlushInterval);
+        int batchSize = getIntegerProperty(properties, "intentBatchSize", intentBatchSize);
+        if (flushInterval > 0 && batchSize > 0
+                && (flushInterval != intentFlushInterval || batchSize != intentBatchSize)) {
+            intentFlushInterval = flushInterval;
+            intentBatchSize = batchSize;
+            if (intentBatcher != null) {
+                intentBatcher.configure(intentFlushInterval, intentBatchSize);
+            }
+            log.info("Intent pipeline flushes every {} ms or {} operations", intentFlushInterval, intentBatchSize);
+        }
+
+        Boolean singleHop = isPropertyEnabled(properties, "singleHopFlowRules");
+        if (singleHop != null && singleHop != singleHopFlowRules) {
+            singleHopFlowRules = singleHop;
+            log.info("Single hop flow rule fast path is {}", singleHopFlowRules ? "enabled" : "disabled");
+        }
+
+        Boolean prefixMatch = isPropertyEnabled(properties, "matchRoutePrefix");
+        if (prefixMatch != null && prefixMatch != matchRoutePrefix) {
+            matchRoutePrefix = prefixMatch;
+            log.info("Route prefix matching is {}", matchRoutePrefix ? "enabled" : "disabled");
+        }
+
+        String categories = get(properties, "traceCategories");
+        if (!Strings.isNullOrEmpty(categories) && !categories.equals(traceCategories)) {
+            try {
+                trace.configure(categories);
+                traceCategories = categories;
+                log.info("Packet trace categories set to {}", traceCategories);
+            } catch (IllegalArgumentException e) {
+                log.warn("Ignoring invalid traceCategories {}: {}", categories, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns the host cache used to resolve inbound destinations.
+     *
+     * @return host cache
+     */
+    public HostCache hostCache() {
+        return hostCache;
+    }
+
+    /**
+     * Returns the number of route intents currently installed.
+     *
+     * @return number of route intents
+     */
+    public int routeIntentCount() {
+        return routeIntents.size();
+    }
+
+    /**
+     * Returns the number of prefixes in the FIB.
+     *
+     * @return FIB size
+     */
+    public int fibSize() {
+        return fib.size();
+    }
+
+    /**
+     * Returns the registry of the intents submitted by the vRouter.
+     *
+     * @return intent registry
+     */
+    public IntentRegistry intentRegistry() {
+        return intentRegistry;
+    }
+
+    /**
+     * Returns the pipeline intents are submitted and withdrawn through.
+     *
+     * @return intent batcher
+     */
+    public IntentBatcher intentBatcher() {
+        return intentBatcher;
+    }
+
+    /**
+     * Returns the outcome of the last router config reconciliation.
+     *
+     * @return reconcile report or null if no config was applied yet
+     */
+    public ReconcileReport lastReconcileReport() {
+        return lastReconcileReport;
+    }
+
+    /**
+     * Returns the time the controller took to handle the packets of the fast
+     * path, from packet-in until the packet is sent back to the device. It
+     * does not include the time the device takes to forward the packet.
+     *
+     * @return fast path handling time
+     */
+    public LatencyStats fastPathHandling() {
+        return fastPathHandling;
+    }
+
+    /**
+     * Returns the number of fast path rules currently written.
+     *
+     * @return number of fast path rules
+     */
+    public int fastPathRuleCount() {
+        return fastPathRules.size();
+    }
+
+    /**
+     * Returns the number of fast path rules not written again because an
+     * identical rule was already written.
+     *
+     * @return number of suppressed fast path rules
+     */
+    public long fastPathSuppressed() {
+        return fastPathSuppressed.sum();
+    }
+
+    /**
+     * Returns the event counters and trace gate of the packet processor.
+     *
+     * @return event trace
+     */
+    public EventTrace eventTrace() {
+        return trace;
+    }
+
+    /**
+     * Returns the number of flow entries the vRouter occupies on each device,
+     * including the ones compiled from its intents.
+     *
+     * @return flow entry count by device
+     */
+    public Map<DeviceId, Integer> flowTableOccupancy() {
+        Map<DeviceId, Integer> occupancy = Maps.newTreeMap(Comparator.comparing(DeviceId::toString));
+        for (FlowEntry entry : flowRuleService.getFlowEntriesById(appId)) {
+            occupancy.merge(entry.deviceId(), 1, Integer::sum);
+        }
+        return occupancy;
+    }
+
+    /**
+     * Writes the flow rule of a flow whose ingress and egress are on the same
+     * device, bypassing intent compilation, and forwards the punted packet.
+     * A rule identical to one already written is not written again.
+     *
+     * @return true if the packet was handled by the fast path
+     */
+    private boolean forwardOnDevice(PacketContext context, TrafficSelector selector, TrafficTreatment treatment,
+                                    ConnectPoint ingressPoint, ConnectPoint egressPoint) {
+        if (!singleHopFlowRules || !ingressPoint.deviceId().equals(egressPoint.deviceId())) {
+            return false;
+        }
+
+        TrafficTreatment forward = DefaultTrafficTreatment.builder(treatment)
+            .setOutput(egressPoint.port())
+            .build();
+        FlowRule rule = DefaultFlowRule.builder()
+            .forDevice(egressPoint.deviceId())
+            .withSelector(DefaultTrafficSelector.builder(selector).matchInPort(ingressPoint.port()).build())
+            .withTreatment(forward)
+            .withPriority(FAST_PATH_PRIORITY)
+            .makeTemporary(FAST_PATH_TIMEOUT)
+            .fromApp(appId)
+            .build();
+        FlowRule existing = fastPathRules.put(rule.id(), rule);
+        if (existing != null && existing.exactMatch(rule)) {
+            fastPathSuppressed.increment();
+        } else {
+            flowRuleService.applyFlowRules(rule);
+        }
+
+        forward.allInstructions().forEach(context.treatmentBuilder()::add);
+        context.send();
+        fastPathHandling.record(System.currentTimeMillis() - context.time());
+        return true;
+    }
+
+    /**
+     * Resolves a host address missing from the cache. The cache follows the
+     * host events, so the host store is only asked once the cache has evicted
+     * hosts. The caller only asks for destinations not covered by the FIB,
+     * which is what most misses are.
+     */
+    private HostCache.Entry lookupEvictedHost(IpAddress ip) {
+        if (hostCache.evictions() == 0) {
+            return null;
+        }
+
+        hostCache.recordStoreLookup();
+        Host host = hostService.getHostsByIp(ip).stream().findFirst().orElse(null);
+        if (host == null) {
+            return null;
+        }
+        hostCache.update(host);
+        return new HostCache.Entry(host.mac(), host.location());
+    }
+
+    /**
+     * Returns the number of intents the route intents avoided compared with
+     * installing one PointToPointIntent per ingress point of each route
+     * prefix, which is what a MultiPointToSinglePointIntent collapses.
+     *
+     * @return number of saved intents
+     */
+    public long intentsSaved() {
+        long saved = 0;
+        for (MultiPointToSinglePointIntent intent : routeIntents.values()) {
+            saved += intent.filteredIngressPoints().size() - 1;
+        }
+        return saved;
+    }
+
+    /**
+     * Installs or extends the intent forwarding a route prefix to its egress interface.
+     * Every edge point except the egress one is an ingress point, so one intent serves
+     * all flows towards the prefix. The ingress point of a punted packet may be given
+     * in case it is not an edge point yet; it is null for route-driven installs.
+     */
+    private void installRouteIntent(IpPrefix prefix, MacAddress nextHopMac,
+                                    ConnectPoint egressPoint, ConnectPoint ingressPoint) {
+        TrafficTreatment treatment = DefaultTrafficTreatment.builder()
+            .setEthSrc(routerMac)
+            .setEthDst(nextHopMac)
+            .build();
+        FilteredConnectPoint egress = new FilteredConnectPoint(egressPoint);
+        FilteredConnectPoint ingress = ingressPoint != null ? new FilteredConnectPoint(ingressPoint) : null;
+
+        synchronized (routeIntents) {
+            MultiPointToSinglePointIntent existing = routeIntents.get(prefix);
+            // A failed intent is dropped by the registry and has to be submitted again.
+            boolean active = existing != null && intentRegistry.get(existing.key()) != null;
+            if (active && existing.filteredEgressPoint().equals(egress)
+                    && existing.treatment().equals(treatment)
+                    && (ingress == null || existing.filteredIngressPoints().contains(ingress))) {
+                return;
+            }
+
+            Set<FilteredConnectPoint> ingressPoints = Sets.newHashSet();
+            for (ConnectPoint edgePoint : edgePortService.getEdgePoints()) {
+                if (!edgePoint.equals(egressPoint)) {
+                    ingressPoints.add(new FilteredConnectPoint(edgePoint));
+                }
+            }
+            if (ingress != null) {
+                ingressPoints.add(ingress);
+            }
+            if (existing != null && existing.filteredEgressPoint().equals(egress)) {
+                // Keep ingress points learned from earlier punts.
+                ingressPoints.addAll(existing.filteredIngressPoints());
+            }
+            ingressPoints.remove(egress);
+
+            TrafficSelector selector = DefaultTrafficSelector.builder()
+                .matchEthType(Ethernet.TYPE_IPV4)
+                .matchIPDst(prefix)
+                .build();
+
+            MultiPointToSinglePointIntent intent = MultiPointToSinglePointIntent.builder()
+                .appId(appId)
+                .key(Key.of(prefix.toString(), appId))
+                .selector(selector)
+                .treatment(treatment)
+                .filteredIngressPoints(ingressPoints)
+                .filteredEgressPoint(egress)
+                .priority(ROUTE_PRIORITY_OFFSET + prefix.prefixLength() * ROUTE_PRIORITY_MULTIPLIER)
+                .build();
+
+            intentRegistry.submit(intent, IntentRegistry.Kind.ROUTE);
+            routeIntents.put(prefix, intent);
+            log.info("Route intent installed for prefix {} via {}. Intents saved so far: {}",
+                prefix, egressPoint, intentsSaved());
+        }
+    }
+
+    private void withdrawRouteIntent(IpPrefix prefix) {
+        synchronized (routeIntents) {
+            MultiPointToSinglePointIntent intent = routeIntents.remove(prefix);
+            if (intent != null) {
+                intentRegistry.withdraw(intent.key());
+                log.info("Route intent withdrawn for prefix {}", prefix);
+            }
+        }
+    }
+
+    /**
+     * Resolves the egress interface of a route and stores the result in the FIB.
+     *
+     * @return the FIB entry or null if the route cannot be resolved yet
+     */
+    private Ip4Fib.Entry updateFib(ResolvedRoute route) {
+        Interface egressIntf = intfService.getMatchingInterface(route.nextHop());
+        if (egressIntf == null || route.nextHopMac() == null) {
+            log.debug("Cannot resolve egress for route {} via {}", route.prefix(), route.nextHop());
+            fib.remove(route.prefix());
+            return null;
+        }
+
+        Ip4Fib.Entry entry = new Ip4Fib.Entry(route.prefix(), egressIntf.connectPoint(), route.nextHopMac());
+        fib.put(entry);
+        return entry;
+    }
+
+    /**
+     * Looks up the FIB entry for a destination. The FIB follows route events, the
+     * route service is only asked for routes that could not be resolved when they
+     * were announced.
+     */
+    private Ip4Fib.Entry lookupFib(IpAddress dstIp) {
+        Ip4Fib.Entry entry = fib.lookup(dstIp.getIp4Address().toInt());
+        if (entry != null) {
+            return entry;
+        }
+
+        Optional<ResolvedRoute> route = routeService.longestPrefixLookup(dstIp);
+        return route.isPresent() && route.get().prefix().isIp4() ? updateFib(route.get()) : null;
+    }
+
+    private void installRoute(Ip4Fib.Entry entry) {
+        if (appId == null || routerMac == null) {
+            // Router config not received yet, routes are replayed once it is.
+            return;
+        }
+        installRouteIntent(entry.prefix(), entry.nextHopMac(), entry.egressPoint(), null);
+    }
+
+    private void installResolvedRoutes() {
+        for (RouteTableId tableId : routeService.getRouteTables()) {
+            for (ResolvedRoute route : routeService.getResolvedRoutes(tableId)) {
+                if (!route.prefix().isIp4()) {
+                    continue;
+                }
+                Ip4Fib.Entry entry = updateFib(route);
+                if (entry != null) {
+                    installRoute(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds the eBGP intents between the router and each peer of the current config.
+     */
+    private Map<Key, Intent> peeringIntents() {
+        Map<Key, Intent> intents = Maps.newHashMap();
+        if (routerCp == null || peers == null) {
+            return intents;
+        }
+
+        for (IpAddress peerAddress : peers) {
+            Interface peerIntf = intfService.getMatchingInterface(peerAddress);
+            if (peerIntf == null) {
+                log.warn("No interface found for peer {}", peerAddress);
+                continue;
+            }
+            ConnectPoint interfaceCp = peerIntf.connectPoint();
+            IpAddress interfaceIp = intfService.getInterfacesByPort(interfaceCp).stream()
+                .map(Interface::ipAddressesList)
+                .flatMap(List::stream)
+                .map(InterfaceIpAddress::ipAddress)
+                .findFirst()
+                .orElse(null);
+            if (interfaceIp == null) {
+                log.warn("No address configured on interface {} of peer {}", interfaceCp, peerAddress);
+                continue;
+            }
+
+            TrafficSelector.Builder selector = DefaultTrafficSelector.builder()
+                .matchEthType(Ethernet.TYPE_IPV4)
+                .matchIPDst(IpPrefix.valueOf(peerAddress, 32));
+
+            PointToPointIntent outgoingIntent = PointToPointIntent.builder()
+                .appId(appId)
+                .key(Key.of("ebgp-out-" + peerAddress, appId))
+                .selector(selector.build())
+                .filteredEgressPoint(new FilteredConnectPoint(interfaceCp))
+                .filteredIngressPoint(new FilteredConnectPoint(routerCp))
+                .build();
+
+            selector = DefaultTrafficSelector.builder()
+                .matchEthType(Ethernet.TYPE_IPV4)
+                .matchIPDst(IpPrefix.valueOf(interfaceIp, 32));
+
+            PointToPointIntent incomingIntent = PointToPointIntent.builder()
+                .appId(appId)
+                .key(Key.of("ebgp-in-" + peerAddress, appId))
+                .selector(selector.build())
+                .filteredEgressPoint(new FilteredConnectPoint(routerCp))
+                .filteredIngressPoint(new FilteredConnectPoint(interfaceCp))
+                .build();
+
+            intents.put(outgoingIntent.key(), outgoingIntent);
+            intents.put(incomingIntent.key(), incomingIntent);
+        }
+        return intents;
+    }
+
+    /**
+     * Brings the eBGP intents in line with the quagga connect point and peer list.
+     */
+    private void reconcilePeeringIntents(ReconcileReport report) {
+        Map<Key, Intent> desired = peeringIntents();
+        for (Intent intent : intentRegistry.intents(IntentRegistry.Kind.PEERING)) {
+            if (!desired.containsKey(intent.key())) {
+                intentRegistry.withdraw(intent.key());
+                report.removed();
+            }
+        }
+
+        for (Intent intent : desired.values()) {
+            Intent existing = intentRegistry.get(intent.key());
+            if (existing != null && IntentUtils.intentsAreEqual(existing, intent)) {
+                report.kept();
+                continue;
+            }
+            intentRegistry.submit(intent, IntentRegistry.Kind.PEERING);
+            if (existing != null) {
+                report.replaced();
+            } else {
+                report.added();
+            }
+        }
+    }
+
+    /**
+     * Rewrites the source MAC of the route intents if the router MAC changed.
+     */
+    private void reconcileRouteIntents(boolean routerMacChanged, ReconcileReport report) {
+        synchronized (routeIntents) {
+            for (Map.Entry<IpPrefix, MultiPointToSinglePointIntent> entry : routeIntents.entrySet()) {
+                if (!routerMacChanged) {
+                    report.kept();
+                    continue;
+                }
+                MultiPointToSinglePointIntent intent = entry.getValue();
+                MultiPointToSinglePointIntent replacement = MultiPointToSinglePointIntent.builder()
+                    .appId(intent.appId())
+                    .key(intent.key())
+                    .selector(intent.selector())
+                    .treatment(withEthSrc(intent.treatment(), routerMac))
+                    .filteredIngressPoints(intent.filteredIngressPoints())
+                    .filteredEgressPoint(intent.filteredEgressPoint())
+                    .priority(intent.priority())
+                    .build();
+                intentRegistry.submit(replacement, IntentRegistry.Kind.ROUTE);
+                entry.setValue(replacement);
+                report.replaced();
+            }
+        }
+    }
+
+    /**
+     * Rewrites the source MAC of the flow intents of a kind if the MAC they use changed.
+     */
+    private void reconcileFlowIntents(IntentRegistry.Kind kind, boolean macChanged,
+                                      MacAddress ethSrc, ReconcileReport report) {
+        for (Intent intent : intentRegistry.intents(kind)) {
+            if (!macChanged) {
+                report.kept();
+            } else if (intent instanceof PointToPointIntent) {
+                PointToPointIntent flow = (PointToPointIntent) intent;
+                PointToPointIntent replacement = PointToPointIntent.builder()
+                    .appId(flow.appId())
+                    .key(flow.key())
+                    .selector(flow.selector())
+                    .treatment(withEthSrc(flow.treatment(), ethSrc))
+                    .filteredIngressPoint(flow.filteredIngressPoint())
+                    .filteredEgressPoint(flow.filteredEgressPoint())
+                    .priority(flow.priority())
+                    .build();
+                intentRegistry.submit(replacement, kind);
+                report.replaced();
+            } else {
+                intentRegistry.withdraw(intent.key());
+                report.removed();
+            }
+        }
+    }
+
+    /**
+     * Rewrites the source MAC of the fast path rules written with a MAC that
+     * changed. The rules are not tracked: they are the temporary rules of the
+     * vRouter at the fast path priority, intents compile to permanent ones.
+     */
+    private void reconcileFastPathRules(Map<MacAddress, MacAddress> macChanges, ReconcileReport report) {
+        FlowRuleOperations.Builder operations = FlowRuleOperations.builder();
+        int modified = 0;
+        for (FlowEntry entry : flowRuleService.getFlowEntriesById(appId)) {
+            if (entry.isPermanent() || entry.priority() != FAST_PATH_PRIORITY) {
+                continue;
+            }
+            MacAddress ethSrc = ethSrc(entry.treatment());
+            if (ethSrc == null) {
+                continue;
+            }
+            MacAddress replacement = macChanges.get(ethSrc);
+            if (replacement == null) {
+                report.kept();
+                continue;
+            }
+            // Same device, selector and priority, so the rule keeps its id and is modified in place.
+            FlowRule rule = DefaultFlowRule.builder()
+                .forDevice(entry.deviceId())
+                .withSelector(entry.selector())
+                .withTreatment(withEthSrc(entry.treatment(), replacement))
+                .withPriority(entry.priority())
+                .makeTemporary(entry.timeout())
+                .fromApp(appId)
+                .build();
+            operations.modify(rule);
+            fastPathRules.put(rule.id(), rule);
+            report.replaced();
+            modified++;
+        }
+        if (modified > 0) {
+            flowRuleService.apply(operations.build());
+        }
+    }
+
+    private static MacAddress ethSrc(TrafficTreatment treatment) {
+        for (Instruction instruction : treatment.allInstructions()) {
+            if (instruction instanceof ModEtherInstruction
+                    && ((ModEtherInstruction) instruction).subtype() == L2SubType.ETH_SRC) {
+                return ((ModEtherInstruction) instruction).mac();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a copy of the treatment with its source MAC rewrite set to the given address.
+     */
+    private static TrafficTreatment withEthSrc(TrafficTreatment treatment, MacAddress ethSrc) {
+        TrafficTreatment.Builder builder = DefaultTrafficTreatment.builder();
+        for (Instruction instruction : treatment.allInstructions()) {
+            if (instruction instanceof ModEtherInstruction
+                    && ((ModEtherInstruction) instruction).subtype() == L2SubType.ETH_SRC) {
+                builder.setEthSrc(ethSrc);
+            } else {
+                builder.add(instruction);
+            }
+        }
+        return builder.build();
+    }
+
+    private void withdrawRouteIntents() {
+        synchronized (routeIntents) {
+            for (Intent intent : routeIntents.values()) {
+                intentRegistry.withdraw(intent.key());
+            }
+            routeIntents.clear();
+        }
+    }
+
     private void requestPackets() {
         // TrafficSelector.Builder selector = DefaultTrafficSelector.builder()
         //     .matchEthType(Ethernet.TYPE_IPV4);
@@ -185,7 +906,9 @@ public class AppComponent {
             }
             MacAddress srcMac = ethPkt.getSourceMAC();
             MacAddress dstMac = ethPkt.getDestinationMAC();
-            log.info("[L2] srcMac: {}, dstMac: {}", srcMac, dstMac);
+            if (trace.sample(EventTrace.Category.L2)) {
+                log.info("[L2] srcMac: {}, dstMac: {}", srcMac, dstMac);
+            }
 
             if (ethPkt.getEtherType() != Ethernet.TYPE_IPV4) {
                 return;
@@ -194,20 +917,25 @@ public class AppComponent {
             IPv4 ipPkt = (IPv4) ethPkt.getPayload();
             IpAddress srcIp = IpAddress.valueOf(ipPkt.getSourceAddress());
             IpAddress dstIp = IpAddress.valueOf(ipPkt.getDestinationAddress());
-            log.info("[L3] srcMac: {}, dstMac: {}, srcIp: {}, dstIp: {}", srcMac, dstMac, srcIp, dstIp);
+            if (trace.sample(EventTrace.Category.L3)) {
+                log.info("[L3] srcMac: {}, dstMac: {}, srcIp: {}, dstIp: {}", srcMac, dstMac, srcIp, dstIp);
+            }
             
             // If the dstIp is a known host. We do L2 modification for inbound packets
-            MacAddress hostMac = hostService.getHostsByIp(dstIp).stream()
-                .map(Host::mac)
-                .findFirst()
-                .orElse(null);
-            ConnectPoint hostCp = hostService.getHostsByIp(dstIp).stream()
-                .map(Host::location)
-                .findFirst()
-                .orElse(null);
-            
-            if (hostMac != null) {
-                log.info("[External->SDN] HostMac is found. L2 modification is needed. HostMac: {}", hostMac);
+            HostCache.Entry host = hostCache.get(dstIp);
+            Ip4Fib.Entry route = null;
+            if (host == null) {
+                route = lookupFib(dstIp);
+                if (route == null) {
+                    host = lookupEvictedHost(dstIp);
+                }
+            }
+            if (host != null) {
+                MacAddress hostMac = host.mac();
+                ConnectPoint hostCp = host.location();
+                if (trace.sample(EventTrace.Category.INBOUND)) {
+                    log.info("[External->SDN] HostMac is found. L2 modification is needed. HostMac: {}", hostMac);
+                }
                 TrafficTreatment treatment = DefaultTrafficTreatment.builder()
                     .setEthSrc(virtualMac)
                     .setEthDst(hostMac)
@@ -218,37 +946,40 @@ public class AppComponent {
                     .matchIPDst(dstIp.toIpPrefix())
                     .build();
                 
+                ConnectPoint ingressPoint = context.inPacket().receivedFrom();
+                if (forwardOnDevice(context, selector, treatment, ingressPoint, hostCp)) {
+                    return;
+                }
+
                 PointToPointIntent intent = PointToPointIntent.builder()
                     .appId(appId)
+                    .key(intentRegistry.flowKey(selector, ingressPoint, hostCp))
                     .selector(selector)
                     .treatment(treatment)
-                    .filteredIngressPoint(new FilteredConnectPoint(context.inPacket().receivedFrom()))
+                    .filteredIngressPoint(new FilteredConnectPoint(ingressPoint))
                     .filteredEgressPoint(new FilteredConnectPoint(hostCp))
                     .build();
 
-                intentService.submit(intent);
-                installedIntents.add(intent);
+                intentRegistry.submit(intent, IntentRegistry.Kind.INBOUND, context.time());
 
                 context.block();
                 return;
-            } else {
-                log.info("[External->SDN] HostMac is not found. Next...");
             }
 
             // L2 modification for outbound packets
             // check dstIp is out of the router subnet according to subnet mask
-            Optional<ResolvedRoute> route = routeService.longestPrefixLookup(dstIp);
-            if (route.isPresent()) {
-                log.info("[SDN->External] Route is found. L2 modification is needed. NextHop: {}", route.get().nextHop());
-                MacAddress nextHopMac = hostService.getHostsByIp(route.get().nextHop().getIp4Address()).stream()
-                    .map(Host::mac)
-                    .findFirst()
-                    .orElse(null);
-                ConnectPoint egressPoint = intfService.getMatchingInterface(
-                    route.get().nextHop().getIp4Address()).connectPoint();
-
-                if (nextHopMac == null) {
-                    log.info("[SDN->External] NextHopMac is not found. Ignore the packet.");
+            if (route != null) {
+                boolean traceOutbound = trace.sample(EventTrace.Category.OUTBOUND);
+                if (traceOutbound) {
+                    log.info("[SDN->External] Route is found. L2 modification is needed. Route: {}", route);
+                }
+                MacAddress nextHopMac = route.nextHopMac();
+                ConnectPoint egressPoint = route.egressPoint();
+
+                if (aggregateRoutes) {
+                    installRouteIntent(route.prefix(), nextHopMac, egressPoint,
+                        context.inPacket().receivedFrom());
+                    context.block();
                     return;
                 }
                 
@@ -256,31 +987,52 @@ public class AppComponent {
                     .setEthSrc(routerMac)
                     .setEthDst(nextHopMac)
                     .build();
-                log.info("[SDN->External] srcEth: {}, dstEth: {}", routerMac, nextHopMac);
+                if (traceOutbound) {
+                    log.info("[SDN->External] srcEth: {}, dstEth: {}", routerMac, nextHopMac);
+                }
 
-                TrafficSelector selector = DefaultTrafficSelector.builder()
-                    .matchEthType(Ethernet.TYPE_IPV4)
-                    .matchIPSrc(srcIp.toIpPrefix())
-                    .matchIPDst(dstIp.toIpPrefix())
-                    .build();
+                // Matching the route prefix lets every flow towards the route share one entry.
+                TrafficSelector selector = matchRoutePrefix
+                    ? DefaultTrafficSelector.builder()
+                        .matchEthType(Ethernet.TYPE_IPV4)
+                        .matchIPDst(route.prefix())
+                        .build()
+                    : DefaultTrafficSelector.builder()
+                        .matchEthType(Ethernet.TYPE_IPV4)
+                        .matchIPSrc(srcIp.toIpPrefix())
+                        .matchIPDst(dstIp.toIpPrefix())
+                        .build();
+                int priority = matchRoutePrefix
+                    ? ROUTE_PRIORITY_OFFSET + route.prefix().prefixLength() * ROUTE_PRIORITY_MULTIPLIER
+                    : Intent.DEFAULT_INTENT_PRIORITY;
+
+                ConnectPoint ingressPoint = context.inPacket().receivedFrom();
+                if (forwardOnDevice(context, selector, treatment, ingressPoint, egressPoint)) {
+                    return;
+                }
 
                 PointToPointIntent intent = PointToPointIntent.builder()
                     .appId(appId)
+                    .key(intentRegistry.flowKey(selector, ingressPoint, egressPoint))
                     .selector(selector)
                     .treatment(treatment)
-                    .filteredIngressPoint(new FilteredConnectPoint(context.inPacket().receivedFrom()))
+                    .filteredIngressPoint(new FilteredConnectPoint(ingressPoint))
                     .filteredEgressPoint(new FilteredConnectPoint(egressPoint))
+                    .priority(priority)
                     .build();
                 
-                log.info("[SDN->External] Intent install for L2 modification. Intent: {}", intent);
+                if (traceOutbound) {
+                    log.info("[SDN->External] Intent install for L2 modification. Intent: {}", intent);
+                }
                 
-                intentService.submit(intent);
-                installedIntents.add(intent);
+                intentRegistry.submit(intent, IntentRegistry.Kind.OUTBOUND, context.time());
 
                 context.block();
                 return;
             } else {
-                log.info("[SDN->External] Route is not found. Ignore the packet.");
+                if (trace.sample(EventTrace.Category.DROP)) {
+                    log.info("[SDN->External] Route is not found. Ignore the packet. dstIp: {}", dstIp);
+                }
                 return;
             }
         }
@@ -294,10 +1046,11 @@ public class AppComponent {
                 && event.configClass().equals(VRouterConfig.class)) {
                     VRouterConfig config = cfgService.getConfig(appId, VRouterConfig.class);
                 if (config != null) {
-                    // drop all existing flows/intents
-                    for (Intent intent : installedIntents) {
-                        intentService.withdraw(intent);
-                    }
+                    MacAddress oldRouterMac = routerMac;
+                    MacAddress oldVirtualMac = virtualMac;
+                    boolean routerMacChanged = !Objects.equals(routerMac, config.routerMacAddress());
+                    boolean virtualMacChanged = !Objects.equals(virtualMac, config.virtualMacAddress());
+                    boolean virtualIpChanged = !Objects.equals(virtualIp, config.virtualIpAddress());
 
                     routerCp = config.routerConnectPoint();
                     routerMac = config.routerMacAddress();
@@ -311,53 +1064,92 @@ public class AppComponent {
                     log.info("Virtual MAC Address: {}", virtualMac);
                     log.info("Peers: {}", peers);
 
-                    log.info("Setting up Outgoing/Incoming eBGP flow-rule");
-                    for (IpAddress peerAddress : peers) {
-                        ConnectPoint interfaceCp = intfService.getMatchingInterface(peerAddress).connectPoint();
-                        IpAddress interfaceIp = intfService.getInterfacesByPort(interfaceCp).stream()
-                            .map(Interface::ipAddressesList)
-                            .flatMap(List::stream)
-                            .findFirst()
-                            .orElse(null)
-                            .ipAddress();
-                        
-                        if (interfaceCp == null) {
-                            log.warn("No interface found for peer {}", interfaceCp);
-                            continue;
-                        }
-
-                        log.info("Setting up Outgoing eBGP flow-rule");
-                        TrafficSelector.Builder selector = DefaultTrafficSelector.builder()
-                            .matchEthType(Ethernet.TYPE_IPV4)
-                            .matchIPDst(IpPrefix.valueOf(peerAddress, 32));
-
-                        PointToPointIntent outgoingIntent = PointToPointIntent.builder()
-                            .appId(appId)
-                            .selector(selector.build())
-                            .filteredEgressPoint(new FilteredConnectPoint(interfaceCp))
-                            .filteredIngressPoint(new FilteredConnectPoint(routerCp))
-                            .build();
-                        
-                        log.info("Setting up Incoming eBGP flow-rule");
-                        selector = DefaultTrafficSelector.builder()
-                            .matchEthType(Ethernet.TYPE_IPV4)
-                            .matchIPDst(IpPrefix.valueOf(interfaceIp, 32));
-
-                        PointToPointIntent incomingIntent = PointToPointIntent.builder()
-                            .appId(appId)
-                            .selector(selector.build())
-                            .filteredEgressPoint(new FilteredConnectPoint(routerCp))
-                            .filteredIngressPoint(new FilteredConnectPoint(interfaceCp))
-                            .build();
-                        
-                        intentService.submit(outgoingIntent);
-                        intentService.submit(incomingIntent);
-                        installedIntents.add(outgoingIntent);
-                        installedIntents.add(incomingIntent);
-
-                        log.info("Added Outgoing/Incoming eBGP flow-rule for interface: {}", interfaceCp);
+                    // Only touch the intents depending on the fields that changed.
+                    ReconcileReport report = new ReconcileReport();
+                    if (virtualIpChanged) {
+                        // Nothing matches the virtual IP, see ReconcileReport.
+                        report.virtualIpChanged();
+                    }
+                    reconcilePeeringIntents(report);
+                    reconcileRouteIntents(routerMacChanged, report);
+                    reconcileFlowIntents(IntentRegistry.Kind.OUTBOUND, routerMacChanged, routerMac, report);
+                    reconcileFlowIntents(IntentRegistry.Kind.INBOUND, virtualMacChanged, virtualMac, report);
+                    Map<MacAddress, MacAddress> macChanges = Maps.newHashMap();
+                    if (routerMacChanged && oldRouterMac != null) {
+                        macChanges.put(oldRouterMac, routerMac);
+                    }
+                    if (virtualMacChanged && oldVirtualMac != null) {
+                        macChanges.put(oldVirtualMac, virtualMac);
                     }
+                    reconcileFastPathRules(macChanges, report);
+                    lastReconcileReport = report;
+                    log.info("Router config reconciled: {}", report);
+
+                    if (proactiveRoutes) {
+                        installResolvedRoutes();
+                    }
+                }
+            }
+        }
+    }
+
+    private class InternalHostListener implements HostListener {
+        @Override
+        public void event(HostEvent event) {
+            switch (event.type()) {
+            case HOST_ADDED:
+                hostCache.update(event.subject());
+                break;
+            case HOST_MOVED:
+            case HOST_UPDATED:
+                if (event.prevSubject() != null) {
+                    hostCache.remove(event.prevSubject());
+                }
+                hostCache.update(event.subject());
+                break;
+            case HOST_REMOVED:
+                hostCache.remove(event.subject());
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    private class InternalFlowRuleListener implements FlowRuleListener {
+        @Override
+        public boolean isRelevant(FlowRuleEvent event) {
+            return event.type() == FlowRuleEvent.Type.RULE_REMOVED && event.subject().appId() == appId.id();
+        }
+
+        @Override
+        public void event(FlowRuleEvent event) {
+            // Expired or removed, so the next punted packet writes the rule again.
+            fastPathRules.remove(event.subject().id());
+        }
+    }
+
+    private class InternalRouteListener implements RouteListener {
+        @Override
+        public void event(RouteEvent event) {
+            if (!event.subject().prefix().isIp4()) {
+                return;
+            }
+
+            switch (event.type()) {
+            case ROUTE_ADDED:
+            case ROUTE_UPDATED:
+                Ip4Fib.Entry entry = updateFib(event.subject());
+                if (entry != null && proactiveRoutes) {
+                    installRoute(entry);
                 }
+                break;
+            case ROUTE_REMOVED:
+                fib.remove(event.subject().prefix());
+                withdrawRouteIntent(event.subject().prefix());
+                break;
+            default:
+                break;
             }
         }
     }
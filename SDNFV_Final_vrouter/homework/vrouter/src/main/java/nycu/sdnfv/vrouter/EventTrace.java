@@ -0,0 +1,164 @@
+/*
+ * Copyright 2022-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nycu.sdnfv.vrouter;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sampling and rate limiting gate for the packet processor log lines.
+ * <p>
+ * Every event is counted. Only one event out of the sample rate of its
+ * category is considered for tracing, and those are further capped by a
+ * per-category token bucket, so at high punt rates the packet path does
+ * little more than a counter increment.
+ * <p>
+ * Categories are configured as {@code category:sampleEvery:maxPerSecond}
+ * items separated by commas, e.g. {@code l3:1000:10,drop:1:5}; a sample
+ * rate of 0 disables tracing of the category.
+ */
+public final class EventTrace {
+
+    /**
+     * Packet processor event categories.
+     */
+    public enum Category {
+        /** Every punted frame. */
+        L2,
+        /** Every punted IPv4 packet. */
+        L3,
+        /** Packets towards an SDN host. */
+        INBOUND,
+        /** Packets towards an external route. */
+        OUTBOUND,
+        /** Packets that are neither inbound nor routable. */
+        DROP
+    }
+
+    private final Map<Category, Gate> gates = new EnumMap<>(Category.class);
+
+    private static final class Gate {
+        private final LongAdder events = new LongAdder();
+        private final LongAdder traced = new LongAdder();
+        private final AtomicLong sequence = new AtomicLong();
+
+        private volatile int sampleEvery;
+        private volatile int maxPerSecond;
+        private double tokens;
+        private long lastRefillNanos = System.nanoTime();
+
+        private synchronized void configure(int sampleEvery, int maxPerSecond) {
+            this.sampleEvery = sampleEvery;
+            this.maxPerSecond = maxPerSecond;
+            // Start with a full bucket, so the first events after a change are traced.
+            tokens = maxPerSecond;
+            lastRefillNanos = System.nanoTime();
+        }
+
+        private synchronized boolean tryAcquire() {
+            long now = System.nanoTime();
+            double refill = (now - lastRefillNanos) * maxPerSecond / (double) TimeUnit.SECONDS.toNanos(1);
+            tokens = Math.min(maxPerSecond, tokens + refill);
+            lastRefillNanos = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+
+    /**
+     * Creates a trace with the given category configuration.
+     *
+     * @param categories category configuration
+     */
+    public EventTrace(String categories) {
+        for (Category category : Category.values()) {
+            gates.put(category, new Gate());
+        }
+        configure(categories);
+    }
+
+    /**
+     * Updates the sample rate and rate limit of the listed categories. Nothing
+     * is changed if any item is invalid.
+     *
+     * @param categories category configuration
+     * @throws IllegalArgumentException if an item cannot be parsed
+     */
+    public void configure(String categories) {
+        Map<Category, int[]> rates = new EnumMap<>(Category.class);
+        for (String item : categories.split(",")) {
+            if (item.trim().isEmpty()) {
+                continue;
+            }
+            String[] fields = item.trim().split(":");
+            if (fields.length != 3) {
+                throw new IllegalArgumentException("Invalid trace category: " + item);
+            }
+            int sampleEvery = Integer.parseInt(fields[1].trim());
+            int maxPerSecond = Integer.parseInt(fields[2].trim());
+            if (sampleEvery < 0 || maxPerSecond < 0) {
+                throw new IllegalArgumentException("Invalid trace category: " + item);
+            }
+            rates.put(Category.valueOf(fields[0].trim().toUpperCase(Locale.ROOT)),
+                      new int[] {sampleEvery, maxPerSecond});
+        }
+        rates.forEach((category, rate) -> gates.get(category).configure(rate[0], rate[1]));
+    }
+
+    /**
+     * Counts an event and tells whether it should be traced.
+     *
+     * @param category event category
+     * @return true if the caller should log the event
+     */
+    public boolean sample(Category category) {
+        Gate gate = gates.get(category);
+        gate.events.increment();
+        int sampleEvery = gate.sampleEvery;
+        if (sampleEvery <= 0 || gate.sequence.incrementAndGet() % sampleEvery != 0 || !gate.tryAcquire()) {
+            return false;
+        }
+        gate.traced.increment();
+        return true;
+    }
+
+    /**
+     * Returns the number of events counted in a category.
+     *
+     * @param category event category
+     * @return number of events
+     */
+    public long events(Category category) {
+        return gates.get(category).events.sum();
+    }
+
+    /**
+     * Returns the number of events of a category that were traced.
+     *
+     * @param category event category
+     * @return number of traced events
+     */
+    public long traced(Category category) {
+        return gates.get(category).traced.sum();
+    }
+}
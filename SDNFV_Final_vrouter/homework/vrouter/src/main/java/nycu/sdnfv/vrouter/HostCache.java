@@ -0,0 +1,198 @@
+/*
+ * Copyright 2022-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nycu.sdnfv.vrouter;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.onlab.packet.IpAddress;
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.Host;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.Maps;
+
+/**
+ * Bounded IP to (MAC, location) cache of the hosts known to the host service.
+ * <p>
+ * The cache is fed by host events so the packet processor resolves a host with
+ * a single map lookup, and holds every known host until it is full. Only then
+ * is an address missing from the cache worth a host service lookup: an
+ * arbitrary entry is evicted to make room and an evicted host is resolved
+ * through the host service again. Every lookup of an uncached address counts
+ * as a miss, the host service lookups are counted apart.
+ */
+public final class HostCache {
+
+    private final Map<IpAddress, Entry> entries = Maps.newConcurrentMap();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder storeLookups = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private volatile int maxSize;
+
+    /**
+     * Cached host binding.
+     */
+    public static final class Entry {
+        private final MacAddress mac;
+        private final ConnectPoint location;
+
+        public Entry(MacAddress mac, ConnectPoint location) {
+            this.mac = mac;
+            this.location = location;
+        }
+
+        public MacAddress mac() {
+            return mac;
+        }
+
+        public ConnectPoint location() {
+            return location;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                .add("mac", mac)
+                .add("location", location)
+                .toString();
+        }
+    }
+
+    /**
+     * Creates a cache holding at most the given number of addresses.
+     *
+     * @param maxSize maximum number of cached addresses
+     */
+    public HostCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the binding of an address and records a hit or a miss.
+     *
+     * @param ip host address
+     * @return binding or null if the address is not cached
+     */
+    public Entry get(IpAddress ip) {
+        Entry entry = entries.get(ip);
+        if (entry != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * Records an address that had to be looked up in the host service.
+     */
+    public void recordStoreLookup() {
+        storeLookups.increment();
+    }
+
+    /**
+     * Caches the bindings of all addresses of a host.
+     *
+     * @param host host
+     */
+    public void update(Host host) {
+        Entry entry = new Entry(host.mac(), host.location());
+        for (IpAddress ip : host.ipAddresses()) {
+            if (!entries.containsKey(ip)) {
+                makeRoom();
+            }
+            entries.put(ip, entry);
+        }
+    }
+
+    /**
+     * Removes the bindings of all addresses of a host.
+     *
+     * @param host host
+     */
+    public void remove(Host host) {
+        for (IpAddress ip : host.ipAddresses()) {
+            Entry entry = entries.get(ip);
+            if (entry != null && entry.mac().equals(host.mac())) {
+                entries.remove(ip, entry);
+            }
+        }
+    }
+
+    /**
+     * Sets the maximum number of cached addresses, evicting entries if needed.
+     *
+     * @param maxSize maximum number of cached addresses
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        while (entries.size() > maxSize) {
+            if (!evictOne()) {
+                break;
+            }
+        }
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public int maxSize() {
+        return maxSize;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long storeLookups() {
+        return storeLookups.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    private void makeRoom() {
+        if (entries.size() >= maxSize) {
+            evictOne();
+        }
+    }
+
+    private boolean evictOne() {
+        Iterator<IpAddress> it = entries.keySet().iterator();
+        if (!it.hasNext()) {
+            return false;
+        }
+        it.next();
+        it.remove();
+        evictions.increment();
+        return true;
+    }
+}
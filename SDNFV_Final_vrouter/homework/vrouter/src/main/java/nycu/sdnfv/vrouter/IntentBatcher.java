@@ -0,0 +1,186 @@
+/*
+ * Copyright 2022-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nycu.sdnfv.vrouter;
+
+import static org.onlab.util.Tools.groupedThreads;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.onosproject.net.intent.Intent;
+import org.onosproject.net.intent.IntentService;
+import org.onosproject.net.intent.Key;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Asynchronous pipeline submitting and withdrawing intents in batches.
+ * <p>
+ * Operations are queued per intent key, a later operation replacing a pending
+ * one for the same key, and are handed to the intent service from a dedicated
+ * thread every flush interval or as soon as a full batch is pending. Callers
+ * such as the packet processor never block on the intent store.
+ */
+public final class IntentBatcher {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final IntentService intentService;
+    private final ScheduledExecutorService executor =
+        Executors.newSingleThreadScheduledExecutor(groupedThreads("onos/vrouter", "intent-batcher", log));
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    // Pending operations by key, in arrival order.
+    private Map<Key, Operation> pending = new LinkedHashMap<>();
+    private ScheduledFuture<?> flushTask;
+    private volatile int maxBatchSize;
+    private volatile long lastFlushMillis;
+
+    private static final class Operation {
+        private final Intent intent;
+        private final boolean submit;
+
+        private Operation(Intent intent, boolean submit) {
+            this.intent = intent;
+            this.submit = submit;
+        }
+    }
+
+    /**
+     * Creates a batcher for the given intent service.
+     *
+     * @param intentService intent service
+     * @param flushIntervalMillis maximum time an operation stays queued
+     * @param maxBatchSize number of pending operations triggering an early flush
+     */
+    public IntentBatcher(IntentService intentService, long flushIntervalMillis, int maxBatchSize) {
+        this.intentService = intentService;
+        configure(flushIntervalMillis, maxBatchSize);
+    }
+
+    /**
+     * Changes the flush interval and the batch size.
+     *
+     * @param flushIntervalMillis maximum time an operation stays queued
+     * @param maxBatchSize number of pending operations triggering an early flush
+     */
+    public synchronized void configure(long flushIntervalMillis, int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+        if (flushTask != null) {
+            flushTask.cancel(false);
+        }
+        flushTask = executor.scheduleWithFixedDelay(this::flush, flushIntervalMillis,
+                                                    flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues the submission of an intent.
+     *
+     * @param intent intent
+     */
+    public void submit(Intent intent) {
+        enqueue(new Operation(intent, true));
+    }
+
+    /**
+     * Queues the withdrawal of an intent.
+     *
+     * @param intent intent
+     */
+    public void withdraw(Intent intent) {
+        enqueue(new Operation(intent, false));
+    }
+
+    private void enqueue(Operation operation) {
+        boolean full;
+        synchronized (this) {
+            if (pending.put(operation.intent.key(), operation) != null) {
+                coalesced.increment();
+            }
+            full = pending.size() == maxBatchSize;
+        }
+        if (full) {
+            executor.execute(this::flush);
+        }
+    }
+
+    /**
+     * Hands all pending operations to the intent service, one batch at a time.
+     */
+    public void flush() {
+        Map<Key, Operation> operations;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            operations = pending;
+            pending = new LinkedHashMap<>();
+        }
+
+        long start = System.currentTimeMillis();
+        Iterator<Operation> it = operations.values().iterator();
+        while (it.hasNext()) {
+            for (int i = 0; i < maxBatchSize && it.hasNext(); i++) {
+                Operation operation = it.next();
+                if (operation.submit) {
+                    intentService.submit(operation.intent);
+                } else {
+                    intentService.withdraw(operation.intent);
+                }
+            }
+            batches.increment();
+        }
+        lastFlushMillis = System.currentTimeMillis() - start;
+        log.debug("Flushed {} intent operations in {} ms", operations.size(), lastFlushMillis);
+    }
+
+    /**
+     * Flushes the pending operations and stops the pipeline thread.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    public synchronized int pending() {
+        return pending.size();
+    }
+
+    public long batches() {
+        return batches.sum();
+    }
+
+    public long coalesced() {
+        return coalesced.sum();
+    }
+
+    public long lastFlushMillis() {
+        return lastFlushMillis;
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2022-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nycu.sdnfv.vrouter;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.flow.TrafficSelector;
+import org.onosproject.net.intent.Intent;
+import org.onosproject.net.intent.IntentEvent;
+import org.onosproject.net.intent.IntentListener;
+import org.onosproject.net.intent.IntentService;
+import org.onosproject.net.intent.IntentState;
+import org.onosproject.net.intent.IntentUtils;
+import org.onosproject.net.intent.Key;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+/**
+ * Keyed registry of the intents submitted by the vRouter.
+ * <p>
+ * Submitting an intent whose key is already registered with an identical
+ * intent that is being installed or is installed is a no-op, so a burst of
+ * punted packets for one flow compiles a single intent. Intent states are
+ * tracked through an intent listener; withdrawn, purged, failed and corrupt
+ * intents leave the registry so they can be submitted again.
+ */
+public final class IntentRegistry {
+
+    /**
+     * Role of an intent in the vRouter, telling which config fields it depends on.
+     */
+    public enum Kind {
+        /** eBGP session traffic between the router and a peer. */
+        PEERING,
+        /** Traffic towards a route prefix, rewritten with the router MAC. */
+        ROUTE,
+        /** Traffic towards an SDN host, rewritten with the virtual MAC. */
+        INBOUND,
+        /** Traffic of one flow towards a route, rewritten with the router MAC. */
+        OUTBOUND
+    }
+
+    private final IntentService intentService;
+    private final IntentBatcher batcher;
+    private final ApplicationId appId;
+    private final InternalIntentListener listener = new InternalIntentListener();
+
+    private final Map<Key, Intent> intents = Maps.newConcurrentMap();
+    private final Map<Key, IntentState> states = Maps.newConcurrentMap();
+    private final Map<Key, Kind> kinds = Maps.newConcurrentMap();
+    private final Map<Key, Long> packetInTimes = Maps.newConcurrentMap();
+    private final LatencyStats installLatency = new LatencyStats();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder suppressed = new LongAdder();
+
+    /**
+     * Creates a registry for the intents of an application.
+     *
+     * @param intentService intent service
+     * @param batcher pipeline the submissions and withdrawals are queued to
+     * @param appId application identifier
+     */
+    public IntentRegistry(IntentService intentService, IntentBatcher batcher, ApplicationId appId) {
+        this.intentService = intentService;
+        this.batcher = batcher;
+        this.appId = appId;
+    }
+
+    public void activate() {
+        intentService.addListener(listener);
+    }
+
+    public void deactivate() {
+        intentService.removeListener(listener);
+    }
+
+    /**
+     * Returns the key of a flow intent, derived from its match and end points.
+     *
+     * @param selector traffic selector
+     * @param ingress ingress connect point
+     * @param egress egress connect point
+     * @return intent key
+     */
+    public Key flowKey(TrafficSelector selector, ConnectPoint ingress, ConnectPoint egress) {
+        return Key.of(ingress + "->" + egress + selector.criteria(), appId);
+    }
+
+    /**
+     * Submits an intent unless an identical intent with the same key is
+     * already being installed or installed.
+     *
+     * @param intent intent with an application provided key
+     * @param kind role of the intent
+     * @return true if the intent was submitted
+     */
+    public boolean submit(Intent intent, Kind kind) {
+        return submit(intent, kind, 0);
+    }
+
+    /**
+     * Submits an intent requested by a punted packet, measuring the time from
+     * the packet-in until the intent is installed.
+     *
+     * @param intent intent with an application provided key
+     * @param kind role of the intent
+     * @param packetInMillis time the packet was received, 0 if not triggered by a packet
+     * @return true if the intent was submitted
+     */
+    public boolean submit(Intent intent, Kind kind, long packetInMillis) {
+        kinds.put(intent.key(), kind);
+        boolean[] accepted = {false};
+        intents.compute(intent.key(), (key, existing) -> {
+            if (existing != null && isActive(states.get(key)) && IntentUtils.intentsAreEqual(existing, intent)) {
+                return existing;
+            }
+            states.put(key, IntentState.INSTALL_REQ);
+            accepted[0] = true;
+            return intent;
+        });
+
+        if (!accepted[0]) {
+            suppressed.increment();
+            return false;
+        }
+        submitted.increment();
+        if (packetInMillis > 0) {
+            packetInTimes.put(intent.key(), packetInMillis);
+        }
+        batcher.submit(intent);
+        return true;
+    }
+
+    /**
+     * Withdraws the intent registered under a key.
+     *
+     * @param key intent key
+     * @return the withdrawn intent or null if none was registered
+     */
+    public Intent withdraw(Key key) {
+        Intent intent = intents.remove(key);
+        if (intent != null) {
+            states.remove(key);
+            kinds.remove(key);
+            batcher.withdraw(intent);
+        }
+        return intent;
+    }
+
+    /**
+     * Withdraws all registered intents.
+     */
+    public void withdrawAll() {
+        for (Key key : ImmutableList.copyOf(intents.keySet())) {
+            withdraw(key);
+        }
+    }
+
+    /**
+     * Returns the intent registered under a key.
+     *
+     * @param key intent key
+     * @return intent or null
+     */
+    public Intent get(Key key) {
+        return intents.get(key);
+    }
+
+    /**
+     * Returns the registered intents of a kind.
+     *
+     * @param kind role of the intents
+     * @return intents
+     */
+    public List<Intent> intents(Kind kind) {
+        return intents.values().stream()
+            .filter(intent -> kinds.get(intent.key()) == kind)
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * Returns the time from packet-in to installation of packet triggered intents.
+     *
+     * @return install latency
+     */
+    public LatencyStats installLatency() {
+        return installLatency;
+    }
+
+    public int size() {
+        return intents.size();
+    }
+
+    public long submitted() {
+        return submitted.sum();
+    }
+
+    public long suppressed() {
+        return suppressed.sum();
+    }
+
+    private static boolean isActive(IntentState state) {
+        return state == IntentState.INSTALL_REQ || state == IntentState.COMPILING
+            || state == IntentState.INSTALLING || state == IntentState.INSTALLED;
+    }
+
+    private class InternalIntentListener implements IntentListener {
+        @Override
+        public boolean isRelevant(IntentEvent event) {
+            return appId.equals(event.subject().appId()) && intents.containsKey(event.subject().key());
+        }
+
+        @Override
+        public void event(IntentEvent event) {
+            Key key = event.subject().key();
+            switch (event.type()) {
+            case INSTALLED:
+                states.computeIfPresent(key, (k, state) -> IntentState.INSTALLED);
+                Long packetIn = packetInTimes.remove(key);
+                if (packetIn != null) {
+                    installLatency.record(System.currentTimeMillis() - packetIn);
+                }
+                break;
+            case FAILED:
+            case CORRUPT:
+                // Never installed, so an identical submission must not be suppressed.
+                packetInTimes.remove(key);
+                states.remove(key);
+                intents.remove(key);
+                kinds.remove(key);
+                break;
+            case WITHDRAWN:
+            case PURGED:
+                // The event may trail a resubmission of the same key; keep the new request.
+                if (states.get(key) != IntentState.INSTALL_REQ) {
+                    states.remove(key);
+                    intents.remove(key);
+                    kinds.remove(key);
+                }
+                break;
+            default:
+                break;
+            }
+        }
+    }
+}
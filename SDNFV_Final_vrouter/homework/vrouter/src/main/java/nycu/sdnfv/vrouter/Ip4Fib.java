@@ -0,0 +1,364 @@
+/*
+ * Copyright 2022-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nycu.sdnfv.vrouter;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+import org.onlab.packet.IpPrefix;
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.ConnectPoint;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * IPv4 forwarding table of the vRouter.
+ * <p>
+ * Prefixes are kept in a path-compressed binary (Patricia) trie whose nodes
+ * live in primitive int arrays. A node stores the prefix it stands for, so a
+ * chain of single-child nodes collapses into one edge: the trie holds at most
+ * two nodes per prefix and a longest prefix match visits one node per prefix
+ * length branching on the way, without allocating. Nodes no longer needed
+ * after a removal are unlinked and put on a free list for the next insertion.
+ * Updates are serialized by a lock, lookups are optimistic and only fall back
+ * to the read lock when they race with an update.
+ */
+public final class Ip4Fib {
+
+    private static final int ROOT = 0;
+    private static final int NONE = 0;
+    private static final int INITIAL_NODES = 1024;
+
+    private final StampedLock lock = new StampedLock();
+
+    // Prefix of every node, its bits beyond the length cleared.
+    private int[] keys = new int[INITIAL_NODES];
+    private int[] lengths = new int[INITIAL_NODES];
+    // Child node indexes, by the bit following the prefix of the node; the
+    // root is never a child so 0 marks a missing child. Free nodes are
+    // chained through their left child.
+    private int[] left = new int[INITIAL_NODES];
+    private int[] right = new int[INITIAL_NODES];
+    // Entry of the prefix of a node, null for a node only joining two subtries.
+    private Entry[] entries = new Entry[INITIAL_NODES];
+    private int nodeCount = 1;
+    private int freeNode = NONE;
+    private int freeCount;
+    private int size;
+
+    /**
+     * Forwarding entry resolved for a route prefix.
+     */
+    public static final class Entry {
+        private final IpPrefix prefix;
+        private final ConnectPoint egressPoint;
+        private final MacAddress nextHopMac;
+
+        public Entry(IpPrefix prefix, ConnectPoint egressPoint, MacAddress nextHopMac) {
+            this.prefix = prefix;
+            this.egressPoint = egressPoint;
+            this.nextHopMac = nextHopMac;
+        }
+
+        public IpPrefix prefix() {
+            return prefix;
+        }
+
+        public ConnectPoint egressPoint() {
+            return egressPoint;
+        }
+
+        public MacAddress nextHopMac() {
+            return nextHopMac;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                .add("prefix", prefix)
+                .add("egressPoint", egressPoint)
+                .add("nextHopMac", nextHopMac)
+                .toString();
+        }
+    }
+
+    /**
+     * Returns the entry of the longest prefix matching the address.
+     *
+     * @param address IPv4 address as an int in network order
+     * @return matching entry or null if no prefix covers the address
+     */
+    public Entry lookup(int address) {
+        long stamp = lock.tryOptimisticRead();
+        Entry match = walk(address);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                match = walk(address);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return match;
+    }
+
+    private Entry walk(int address) {
+        // Read the arrays once; an optimistic reader may see a resize or a node
+        // reused in progress, so indexes are bound checked, prefix lengths must
+        // grow along the walk and the result is validated by the caller.
+        int[] k = keys;
+        int[] n = lengths;
+        int[] l = left;
+        int[] r = right;
+        Entry[] e = entries;
+        int capacity = Math.min(Math.min(k.length, n.length), Math.min(Math.min(l.length, r.length), e.length));
+
+        Entry best = e[ROOT];
+        int node = ROOT;
+        int length = 0;
+        while (length < Integer.SIZE) {
+            int next = bit(address, length) == 0 ? l[node] : r[node];
+            if (next == NONE || next >= capacity) {
+                break;
+            }
+            int nextLength = n[next];
+            if (nextLength <= length || nextLength > Integer.SIZE || ((address ^ k[next]) & mask(nextLength)) != 0) {
+                break;
+            }
+            node = next;
+            length = nextLength;
+            if (e[node] != null) {
+                best = e[node];
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Adds or replaces the entry of a prefix.
+     *
+     * @param entry forwarding entry
+     */
+    public void put(Entry entry) {
+        int length = entry.prefix().prefixLength();
+        int key = entry.prefix().address().getIp4Address().toInt() & mask(length);
+        long stamp = lock.writeLock();
+        try {
+            int node = ROOT;
+            while (lengths[node] < length) {
+                int bit = bit(key, lengths[node]);
+                int child = child(node, bit);
+                if (child == NONE) {
+                    setChild(node, bit, allocateNode(key, length, entry));
+                    size++;
+                    return;
+                }
+                int common = Math.min(Math.min(length, lengths[child]),
+                                      Integer.numberOfLeadingZeros(key ^ keys[child]));
+                if (common == lengths[child]) {
+                    node = child;
+                    continue;
+                }
+                int inserted;
+                if (common == length) {
+                    // The prefix covers the child, it goes between the node and the child.
+                    inserted = allocateNode(key, length, entry);
+                    setChild(inserted, bit(keys[child], length), child);
+                } else {
+                    // The prefix and the child diverge, a node joins them at their common bits.
+                    inserted = allocateNode(key & mask(common), common, null);
+                    setChild(inserted, bit(keys[child], common), child);
+                    setChild(inserted, bit(key, common), allocateNode(key, length, entry));
+                }
+                setChild(node, bit, inserted);
+                size++;
+                return;
+            }
+            if (entries[node] == null) {
+                size++;
+            }
+            entries[node] = entry;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes the entry of a prefix.
+     *
+     * @param prefix IPv4 prefix
+     * @return removed entry or null if the prefix was not present
+     */
+    public Entry remove(IpPrefix prefix) {
+        int length = prefix.prefixLength();
+        int key = prefix.address().getIp4Address().toInt() & mask(length);
+        long stamp = lock.writeLock();
+        try {
+            int grandParent = NONE;
+            int parent = NONE;
+            int node = ROOT;
+            while (lengths[node] < length) {
+                int child = child(node, bit(key, lengths[node]));
+                if (child == NONE || lengths[child] > length || ((key ^ keys[child]) & mask(lengths[child])) != 0) {
+                    return null;
+                }
+                grandParent = parent;
+                parent = node;
+                node = child;
+            }
+            Entry removed = entries[node];
+            if (removed == null) {
+                return null;
+            }
+            entries[node] = null;
+            size--;
+            if (node != ROOT) {
+                compact(grandParent, parent, node);
+            }
+            return removed;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Unlinks a node that lost its entry if it no longer joins two subtries,
+     * and then its parent if that one was only joining the node to another one.
+     */
+    private void compact(int grandParent, int parent, int node) {
+        if (left[node] != NONE && right[node] != NONE) {
+            return;
+        }
+        int only = left[node] != NONE ? left[node] : right[node];
+        replaceChild(parent, node, only);
+        releaseNode(node);
+        if (only != NONE || parent == ROOT || entries[parent] != null) {
+            return;
+        }
+        int sibling = left[parent] != NONE ? left[parent] : right[parent];
+        replaceChild(grandParent, parent, sibling);
+        releaseNode(parent);
+    }
+
+    /**
+     * Removes all entries and releases the trie nodes.
+     */
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            keys = new int[INITIAL_NODES];
+            lengths = new int[INITIAL_NODES];
+            left = new int[INITIAL_NODES];
+            right = new int[INITIAL_NODES];
+            entries = new Entry[INITIAL_NODES];
+            nodeCount = 1;
+            freeNode = NONE;
+            freeCount = 0;
+            size = 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Returns the number of prefixes in the table.
+     *
+     * @return number of prefixes
+     */
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns the number of trie nodes in use, the root included.
+     *
+     * @return number of nodes
+     */
+    int nodes() {
+        long stamp = lock.readLock();
+        try {
+            return nodeCount - freeCount;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private static int bit(int address, int index) {
+        return (address >>> (Integer.SIZE - 1 - index)) & 1;
+    }
+
+    private static int mask(int length) {
+        return length == 0 ? 0 : -1 << (Integer.SIZE - length);
+    }
+
+    private int child(int node, int bit) {
+        return bit == 0 ? left[node] : right[node];
+    }
+
+    private void setChild(int node, int bit, int child) {
+        if (bit == 0) {
+            left[node] = child;
+        } else {
+            right[node] = child;
+        }
+    }
+
+    private void replaceChild(int node, int child, int replacement) {
+        if (left[node] == child) {
+            left[node] = replacement;
+        } else {
+            right[node] = replacement;
+        }
+    }
+
+    private int allocateNode(int key, int length, Entry entry) {
+        int node;
+        if (freeNode != NONE) {
+            node = freeNode;
+            freeNode = left[node];
+            freeCount--;
+        } else {
+            if (nodeCount == left.length) {
+                int capacity = left.length * 2;
+                keys = Arrays.copyOf(keys, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+                left = Arrays.copyOf(left, capacity);
+                right = Arrays.copyOf(right, capacity);
+                entries = Arrays.copyOf(entries, capacity);
+            }
+            node = nodeCount++;
+        }
+        keys[node] = key;
+        lengths[node] = length;
+        left[node] = NONE;
+        right[node] = NONE;
+        entries[node] = entry;
+        return node;
+    }
+
+    private void releaseNode(int node) {
+        entries[node] = null;
+        right[node] = NONE;
+        left[node] = freeNode;
+        freeNode = node;
+        freeCount++;
+    }
+}
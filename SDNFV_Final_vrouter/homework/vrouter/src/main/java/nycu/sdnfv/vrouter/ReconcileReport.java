@@ -0,0 +1,85 @@
+/*
+ * Copyright 2022-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nycu.sdnfv.vrouter;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * Outcome of reconciling the installed intents with a new router config.
+ * <p>
+ * A change of the virtual IP is reported but never rewrites an intent: the
+ * inbound intents match the host addresses and the virtual IP is only the
+ * gateway the hosts resolve, so no intent or rule of the vRouter matches it.
+ */
+public final class ReconcileReport {
+
+    private int kept;
+    private int added;
+    private int replaced;
+    private int removed;
+    private boolean virtualIpChanged;
+
+    void kept() {
+        kept++;
+    }
+
+    void added() {
+        added++;
+    }
+
+    void replaced() {
+        replaced++;
+    }
+
+    void removed() {
+        removed++;
+    }
+
+    void virtualIpChanged() {
+        virtualIpChanged = true;
+    }
+
+    public int keptCount() {
+        return kept;
+    }
+
+    public int addedCount() {
+        return added;
+    }
+
+    public int replacedCount() {
+        return replaced;
+    }
+
+    public int removedCount() {
+        return removed;
+    }
+
+    public boolean isVirtualIpChanged() {
+        return virtualIpChanged;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+            .add("kept", kept)
+            .add("added", added)
+            .add("replaced", replaced)
+            .add("removed", removed)
+            .add("virtualIpChanged", virtualIpChanged)
+            .toString();
+    }
+}
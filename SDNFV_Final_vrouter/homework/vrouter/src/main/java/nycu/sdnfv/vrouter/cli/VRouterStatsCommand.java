@@ -0,0 +1,86 @@
+/*
+ * Copyright 2022-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nycu.sdnfv.vrouter.cli;
+
+import java.util.Map;
+
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+import org.onosproject.cli.AbstractShellCommand;
+import org.onosproject.net.DeviceId;
+
+import nycu.sdnfv.vrouter.AppComponent;
+import nycu.sdnfv.vrouter.EventTrace;
+import nycu.sdnfv.vrouter.HostCache;
+import nycu.sdnfv.vrouter.IntentBatcher;
+import nycu.sdnfv.vrouter.IntentRegistry;
+import nycu.sdnfv.vrouter.LatencyStats;
+import nycu.sdnfv.vrouter.ReconcileReport;
+
+/**
+ * Shows the counters of the vRouter caches and intents.
+ */
+@Service
+@Command(scope = "onos", name = "vrouter-stats",
+         description = "Shows the counters of the vRouter caches and intents")
+public class VRouterStatsCommand extends AbstractShellCommand {
+
+    @Override
+    protected void doExecute() {
+        AppComponent vrouter = get(AppComponent.class);
+
+        HostCache hostCache = vrouter.hostCache();
+        print("host-cache: size=%d, max=%d, hits=%d, misses=%d, store-lookups=%d, evictions=%d",
+              hostCache.size(), hostCache.maxSize(), hostCache.hits(),
+              hostCache.misses(), hostCache.storeLookups(), hostCache.evictions());
+        print("fib: prefixes=%d", vrouter.fibSize());
+        print("route-intents: installed=%d, saved=%d",
+              vrouter.routeIntentCount(), vrouter.intentsSaved());
+
+        IntentRegistry intents = vrouter.intentRegistry();
+        print("intents: registered=%d, submitted=%d, duplicates-suppressed=%d",
+              intents.size(), intents.submitted(), intents.suppressed());
+
+        IntentBatcher batcher = vrouter.intentBatcher();
+        print("intent-pipeline: pending=%d, batches=%d, coalesced=%d, last-flush=%dms",
+              batcher.pending(), batcher.batches(), batcher.coalesced(), batcher.lastFlushMillis());
+
+        LatencyStats fastPath = vrouter.fastPathHandling();
+        print("fast-path: rules=%d, duplicates-suppressed=%d, handling count=%d mean=%dms max=%dms",
+              vrouter.fastPathRuleCount(), vrouter.fastPathSuppressed(),
+              fastPath.count(), fastPath.meanMillis(), fastPath.maxMillis());
+        LatencyStats intentPath = intents.installLatency();
+        print("first-packet-latency: intent count=%d mean=%dms max=%dms",
+              intentPath.count(), intentPath.meanMillis(), intentPath.maxMillis());
+
+        ReconcileReport report = vrouter.lastReconcileReport();
+        if (report != null) {
+            print("last-reconcile: kept=%d, added=%d, replaced=%d, removed=%d, virtual-ip-changed=%s",
+                  report.keptCount(), report.addedCount(), report.replacedCount(), report.removedCount(),
+                  report.isVirtualIpChanged());
+        }
+
+        EventTrace trace = vrouter.eventTrace();
+        for (EventTrace.Category category : EventTrace.Category.values()) {
+            print("packet-events: category=%s, count=%d, traced=%d",
+                  category, trace.events(category), trace.traced(category));
+        }
+
+        for (Map.Entry<DeviceId, Integer> entry : vrouter.flowTableOccupancy().entrySet()) {
+            print("flow-table: device=%s, entries=%d", entry.getKey(), entry.getValue());
+        }
+    }
+}
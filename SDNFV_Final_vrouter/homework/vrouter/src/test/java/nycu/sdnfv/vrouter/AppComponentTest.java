@@ -15,33 +15,658 @@
  */
 package nycu.sdnfv.vrouter;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.onlab.osgi.ComponentContextAdapter;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.IPv4;
+import org.onlab.packet.IpAddress;
+import org.onlab.packet.IpPrefix;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.VlanId;
+import org.onosproject.cfg.ComponentConfigAdapter;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.CoreServiceAdapter;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DefaultHost;
+import org.onosproject.net.FilteredConnectPoint;
+import org.onosproject.net.Host;
+import org.onosproject.net.HostId;
+import org.onosproject.net.HostLocation;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.config.Config;
+import org.onosproject.net.config.NetworkConfigEvent;
+import org.onosproject.net.config.NetworkConfigListener;
+import org.onosproject.net.config.NetworkConfigRegistryAdapter;
+import org.onosproject.net.edge.EdgePortServiceAdapter;
+import org.onosproject.net.flow.DefaultFlowEntry;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowId;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleEvent;
+import org.onosproject.net.flow.FlowRuleListener;
+import org.onosproject.net.flow.FlowRuleOperation;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleServiceAdapter;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.flow.criteria.Criterion;
+import org.onosproject.net.flow.criteria.IPCriterion;
+import org.onosproject.net.flow.instructions.Instruction;
+import org.onosproject.net.flow.instructions.L2ModificationInstruction;
+import org.onosproject.net.host.HostServiceAdapter;
+import org.onosproject.net.host.InterfaceIpAddress;
+import org.onosproject.net.intent.ConnectivityIntent;
+import org.onosproject.net.intent.Intent;
+import org.onosproject.net.intent.IntentServiceAdapter;
+import org.onosproject.net.intent.MultiPointToSinglePointIntent;
+import org.onosproject.net.intent.PointToPointIntent;
+import org.onosproject.net.intf.Interface;
+import org.onosproject.net.intf.InterfaceServiceAdapter;
+import org.onosproject.net.packet.DefaultInboundPacket;
+import org.onosproject.net.packet.DefaultPacketContext;
+import org.onosproject.net.packet.PacketProcessor;
+import org.onosproject.net.packet.PacketServiceAdapter;
+import org.onosproject.net.provider.ProviderId;
+import org.onosproject.routeservice.ResolvedRoute;
+import org.onosproject.routeservice.Route;
+import org.onosproject.routeservice.RouteEvent;
+import org.onosproject.routeservice.RouteListener;
+import org.onosproject.routeservice.RouteService;
+import org.onosproject.routeservice.RouteTableId;
 
-import nycu.sdnfv.vrouter.AppComponent;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 /**
  * Set of tests of the ONOS application component.
  */
 public class AppComponentTest {
 
+    private static final ApplicationId APP_ID = new DefaultApplicationId(1, "nycu.sdnfv.vrouter");
+    private static final ConnectPoint ROUTER_CP = ConnectPoint.deviceConnectPoint("of:0000000000000001/1");
+    private static final ConnectPoint HOST_CP = ConnectPoint.deviceConnectPoint("of:0000000000000003/1");
+    private static final IpAddress HOST_IP = IpAddress.valueOf("192.168.50.2");
+    private static final MacAddress HOST_MAC = MacAddress.valueOf("00:00:00:00:00:02");
+    private static final MacAddress ROUTER_MAC = MacAddress.valueOf("00:00:00:00:01:01");
+    private static final IpPrefix REMOTE_PREFIX = IpPrefix.valueOf("172.16.0.0/16");
+    private static final MacAddress NEXT_HOP_MAC = MacAddress.valueOf("00:00:00:00:03:02");
+
+    // Edge ports besides the router and peer ports: two hosts on of:3 and one on of:4.
+    private static final Set<ConnectPoint> EDGE_POINTS = ImmutableSet.of(
+        ROUTER_CP,
+        ConnectPoint.deviceConnectPoint("of:0000000000000001/2"),
+        ConnectPoint.deviceConnectPoint("of:0000000000000001/3"),
+        HOST_CP,
+        ConnectPoint.deviceConnectPoint("of:0000000000000003/2"),
+        ConnectPoint.deviceConnectPoint("of:0000000000000004/1"));
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final TestConfigRegistry cfgService = new TestConfigRegistry();
+    private final TestPacketService packetService = new TestPacketService();
+    private final TestFlowRuleService flowRuleService = new TestFlowRuleService();
+
+    private final Map<IpPrefix, ResolvedRoute> routes = Maps.newHashMap();
+
     private AppComponent component;
+    private RouteListener routeListener;
+    private int sent;
 
     @Before
     public void setUp() {
-        // component = new AppComponent();
-        // component.activate();
+        component = new AppComponent();
+        component.cfgService = cfgService;
+        component.coreService = new TestCoreService();
+        component.packetService = packetService;
+        component.intentService = new IntentServiceAdapter();
+        component.hostService = new TestHostService();
+        component.routeService = routeService();
+        component.intfService = new TestInterfaceService();
+        component.edgePortService = new TestEdgePortService();
+        component.flowRuleService = flowRuleService;
+        component.componentConfigService = new ComponentConfigAdapter();
+        component.activate(null);
     }
 
     @After
     public void tearDown() {
-        // component.deactivate();
+        component.deactivate();
+    }
+
+    /**
+     * Returns a route service resolving the routes announced by the tests,
+     * keeping the route listener of the component to announce them.
+     */
+    private RouteService routeService() {
+        return (RouteService) Proxy.newProxyInstance(RouteService.class.getClassLoader(),
+            new Class<?>[] {RouteService.class}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                case "addListener":
+                    routeListener = (RouteListener) args[0];
+                    return null;
+                case "getRouteTables":
+                    return ImmutableList.of(new RouteTableId("ipv4"));
+                case "getResolvedRoutes":
+                    return ImmutableList.copyOf(routes.values());
+                default:
+                    break;
+                }
+                Class<?> type = method.getReturnType();
+                if (type == Optional.class) {
+                    return Optional.empty();
+                } else if (type == Set.class) {
+                    return ImmutableSet.of();
+                } else if (Iterable.class.isAssignableFrom(type)) {
+                    return ImmutableList.of();
+                }
+                return null;
+            });
+    }
+
+    /**
+     * Applies a router config with the given virtual address and peers.
+     */
+    private void configure(String virtualIp, String virtualMac, String... peers) {
+        configure(ROUTER_MAC, virtualIp, virtualMac, peers);
+    }
+
+    /**
+     * Applies a router config with the given router MAC, virtual address and peers.
+     */
+    private void configure(MacAddress routerMac, String virtualIp, String virtualMac, String... peers) {
+        ObjectNode node = mapper.createObjectNode()
+            .put(VRouterConfig.QUAGGA_CP, ROUTER_CP.toString())
+            .put(VRouterConfig.QUAGGA_MAC, routerMac.toString())
+            .put(VRouterConfig.VIRTUAL_IP, virtualIp)
+            .put(VRouterConfig.VIRTUAL_MAC, virtualMac);
+        for (String peer : peers) {
+            node.withArray(VRouterConfig.PEERS).add(peer);
+        }
+        cfgService.config = new VRouterConfig();
+        cfgService.config.init(APP_ID, "router", node, mapper, null);
+        cfgService.listener.event(new NetworkConfigEvent(NetworkConfigEvent.Type.CONFIG_UPDATED,
+                                                         APP_ID, VRouterConfig.class));
     }
 
+    /**
+     * Sets the properties of the component.
+     */
+    private void setProperties(String... namesAndValues) {
+        Dictionary<String, Object> properties = new Hashtable<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            properties.put(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        component.modified(new TestComponentContext(properties));
+    }
+
+    /**
+     * Announces a route to the component through the route listener.
+     */
+    private void announce(RouteEvent.Type type, IpPrefix prefix, String nextHop, MacAddress nextHopMac) {
+        Route route = new Route(Route.Source.STATIC, prefix, IpAddress.valueOf(nextHop));
+        ResolvedRoute resolved = new ResolvedRoute(route, nextHopMac);
+        if (type == RouteEvent.Type.ROUTE_REMOVED) {
+            routes.remove(prefix);
+        } else {
+            routes.put(prefix, resolved);
+        }
+        routeListener.event(new RouteEvent(type, resolved));
+    }
+
+    /**
+     * Punts an IPv4 packet from the router towards the host.
+     */
+    private void punt() {
+        punt(ROUTER_CP, "10.0.1.2", HOST_IP.toString());
+    }
+
+    /**
+     * Punts an IPv4 packet received on a connect point.
+     */
+    private void punt(ConnectPoint receivedFrom, String srcIp, String dstIp) {
+        IPv4 ipv4 = new IPv4();
+        ipv4.setSourceAddress(srcIp);
+        ipv4.setDestinationAddress(dstIp);
+        Ethernet frame = new Ethernet();
+        frame.setEtherType(Ethernet.TYPE_IPV4)
+            .setSourceMACAddress("00:00:00:00:01:01")
+            .setDestinationMACAddress("00:00:00:00:00:aa")
+            .setPayload(ipv4);
+        packetService.processor.process(new DefaultPacketContext(System.currentTimeMillis(),
+                new DefaultInboundPacket(receivedFrom, frame, ByteBuffer.wrap(frame.serialize())), null, false) {
+            @Override
+            public void send() {
+                sent++;
+            }
+        });
+    }
+
+    private static IpPrefix ipDst(Intent intent) {
+        IPCriterion criterion = (IPCriterion) ((ConnectivityIntent) intent).selector()
+            .getCriterion(Criterion.Type.IPV4_DST);
+        return criterion != null ? criterion.ip() : null;
+    }
+
+    private static MacAddress ethSrc(Intent intent) {
+        return mac(((PointToPointIntent) intent).treatment(), L2ModificationInstruction.L2SubType.ETH_SRC);
+    }
+
+    private static MacAddress mac(TrafficTreatment treatment, L2ModificationInstruction.L2SubType subtype) {
+        for (Instruction instruction : treatment.allInstructions()) {
+            if (instruction instanceof L2ModificationInstruction.ModEtherInstruction
+                    && instruction.subtype() == subtype) {
+                return ((L2ModificationInstruction.ModEtherInstruction) instruction).mac();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks the component registers its packet processor and requests no
+     * intent before it is configured.
+     */
     @Test
     public void basics() {
+        assertNotNull(packetService.processor);
+        assertNull(component.lastReconcileReport());
+        assertEquals(0, component.intentRegistry().size());
+    }
+
+    /**
+     * Checks a config update only replaces the intents depending on the
+     * fields that changed and the report counts them.
+     */
+    @Test
+    public void reconcileDiff() {
+        configure("192.168.50.1", "00:00:00:00:02:01", "10.0.1.2", "10.0.2.2");
+        ReconcileReport report = component.lastReconcileReport();
+        assertEquals(4, report.addedCount());
+        assertEquals(0, report.keptCount() + report.replacedCount() + report.removedCount());
+        assertTrue(report.isVirtualIpChanged());
+
+        punt();
+        List<Intent> inbound = ImmutableList.copyOf(component.intentRegistry().intents(IntentRegistry.Kind.INBOUND));
+        assertEquals(1, inbound.size());
+        assertEquals(MacAddress.valueOf("00:00:00:00:02:01"), ethSrc(inbound.get(0)));
+
+        // One peer less and a new virtual MAC.
+        configure("192.168.50.1", "00:00:00:00:02:02", "10.0.1.2");
+        report = component.lastReconcileReport();
+        assertEquals(2, report.keptCount());
+        assertEquals(0, report.addedCount());
+        assertEquals(1, report.replacedCount());
+        assertEquals(2, report.removedCount());
+        assertFalse(report.isVirtualIpChanged());
+        inbound = ImmutableList.copyOf(component.intentRegistry().intents(IntentRegistry.Kind.INBOUND));
+        assertEquals(MacAddress.valueOf("00:00:00:00:02:02"), ethSrc(inbound.get(0)));
+
+        // Only the virtual IP changed, every intent is kept.
+        configure("192.168.50.254", "00:00:00:00:02:02", "10.0.1.2");
+        report = component.lastReconcileReport();
+        assertEquals(3, report.keptCount());
+        assertEquals(0, report.addedCount() + report.replacedCount() + report.removedCount());
+        assertTrue(report.isVirtualIpChanged());
+    }
+
+    /**
+     * Checks the flows punted towards a route prefix from several hosts and
+     * ingress points are carried by one MultiPointToSinglePointIntent whose
+     * ingress points are every edge point but the egress one, including the
+     * punting points.
+     */
+    @Test
+    public void aggregateRoutes() {
+        configure("192.168.50.1", "00:00:00:00:02:01", "10.0.1.2", "10.0.2.2");
+        setProperties("aggregateRoutes", "true");
+        announce(RouteEvent.Type.ROUTE_ADDED, REMOTE_PREFIX, "10.0.2.2", NEXT_HOP_MAC);
+        assertEquals(0, component.routeIntentCount());
+
+        ConnectPoint notEdge = ConnectPoint.deviceConnectPoint("of:0000000000000005/1");
+        punt(HOST_CP, "192.168.50.2", "172.16.0.1");
+        punt(HOST_CP, "192.168.50.2", "172.16.0.2");
+        punt(ConnectPoint.deviceConnectPoint("of:0000000000000003/2"), "192.168.50.3", "172.16.0.1");
+        punt(ConnectPoint.deviceConnectPoint("of:0000000000000004/1"), "192.168.50.4", "172.16.1.1");
+        punt(notEdge, "192.168.50.5", "172.16.2.1");
+
+        List<Intent> routes = ImmutableList.copyOf(component.intentRegistry().intents(IntentRegistry.Kind.ROUTE));
+        assertEquals(1, routes.size());
+        assertEquals(1, component.routeIntentCount());
+        assertTrue(component.intentRegistry().intents(IntentRegistry.Kind.OUTBOUND).isEmpty());
+
+        MultiPointToSinglePointIntent intent = (MultiPointToSinglePointIntent) routes.get(0);
+        ConnectPoint egress = ConnectPoint.deviceConnectPoint("of:0000000000000001/3");
+        assertEquals(REMOTE_PREFIX, ipDst(intent));
+        assertEquals(new FilteredConnectPoint(egress), intent.filteredEgressPoint());
+        Set<FilteredConnectPoint> ingress = Sets.newHashSet();
+        EDGE_POINTS.stream().filter(cp -> !cp.equals(egress)).map(FilteredConnectPoint::new).forEach(ingress::add);
+        ingress.add(new FilteredConnectPoint(notEdge));
+        assertEquals(ingress, intent.filteredIngressPoints());
+        assertEquals(100 + 16 * 5, intent.priority());
+        assertEquals(ROUTER_MAC, mac(intent.treatment(), L2ModificationInstruction.L2SubType.ETH_SRC));
+        assertEquals(NEXT_HOP_MAC, mac(intent.treatment(), L2ModificationInstruction.L2SubType.ETH_DST));
+        assertEquals(ingress.size() - 1, component.intentsSaved());
+    }
+
+    /**
+     * Checks route events install, update and withdraw the route intents once
+     * proactive routes are on, and turning them off withdraws every route intent.
+     */
+    @Test
+    public void proactiveRoutes() {
+        configure("192.168.50.1", "00:00:00:00:02:01", "10.0.1.2", "10.0.2.2");
+        announce(RouteEvent.Type.ROUTE_ADDED, REMOTE_PREFIX, "10.0.2.2", NEXT_HOP_MAC);
+        assertEquals(0, component.routeIntentCount());
+
+        setProperties("proactiveRoutes", "true");
+        assertEquals(1, component.routeIntentCount());
+        MultiPointToSinglePointIntent intent = (MultiPointToSinglePointIntent)
+            component.intentRegistry().intents(IntentRegistry.Kind.ROUTE).get(0);
+        assertEquals(REMOTE_PREFIX, ipDst(intent));
+        assertEquals(ConnectPoint.deviceConnectPoint("of:0000000000000001/3"),
+                     intent.filteredEgressPoint().connectPoint());
+        assertEquals(NEXT_HOP_MAC, mac(intent.treatment(), L2ModificationInstruction.L2SubType.ETH_DST));
+
+        // The prefix moves to the other peer.
+        MacAddress otherNextHop = MacAddress.valueOf("00:00:00:00:03:01");
+        announce(RouteEvent.Type.ROUTE_UPDATED, REMOTE_PREFIX, "10.0.1.2", otherNextHop);
+        assertEquals(1, component.routeIntentCount());
+        intent = (MultiPointToSinglePointIntent) component.intentRegistry().intents(IntentRegistry.Kind.ROUTE).get(0);
+        assertEquals(ConnectPoint.deviceConnectPoint("of:0000000000000001/2"),
+                     intent.filteredEgressPoint().connectPoint());
+        assertEquals(otherNextHop, mac(intent.treatment(), L2ModificationInstruction.L2SubType.ETH_DST));
+
+        IpPrefix otherPrefix = IpPrefix.valueOf("172.17.0.0/16");
+        announce(RouteEvent.Type.ROUTE_ADDED, otherPrefix, "10.0.2.2", NEXT_HOP_MAC);
+        assertEquals(2, component.routeIntentCount());
+
+        announce(RouteEvent.Type.ROUTE_REMOVED, REMOTE_PREFIX, "10.0.1.2", otherNextHop);
+        List<Intent> routes = component.intentRegistry().intents(IntentRegistry.Kind.ROUTE);
+        assertEquals(1, routes.size());
+        assertEquals(otherPrefix, ipDst(routes.get(0)));
 
+        setProperties("proactiveRoutes", "false");
+        assertEquals(0, component.routeIntentCount());
+        assertTrue(component.intentRegistry().intents(IntentRegistry.Kind.ROUTE).isEmpty());
+        announce(RouteEvent.Type.ROUTE_ADDED, REMOTE_PREFIX, "10.0.2.2", NEXT_HOP_MAC);
+        assertEquals(0, component.routeIntentCount());
     }
 
-}
\ No newline at end of file
+    /**
+     * Punts four flows, from two hosts to two destinations, towards the
+     * remote prefix and returns the outbound intents they requested.
+     */
+    private List<Intent> puntFlowsTowardsRemotePrefix() {
+        configure("192.168.50.1", "00:00:00:00:02:01", "10.0.1.2", "10.0.2.2");
+        announce(RouteEvent.Type.ROUTE_ADDED, REMOTE_PREFIX, "10.0.2.2", NEXT_HOP_MAC);
+        for (String src : new String[] {"192.168.50.2", "192.168.50.3"}) {
+            for (String dst : new String[] {"172.16.0.1", "172.16.1.1"}) {
+                punt(HOST_CP, src, dst);
+            }
+        }
+        return component.intentRegistry().intents(IntentRegistry.Kind.OUTBOUND);
+    }
+
+    /**
+     * Checks every flow towards a route gets its own host match intent by default.
+     */
+    @Test
+    public void outboundHostMatches() {
+        List<Intent> outbound = puntFlowsTowardsRemotePrefix();
+        assertEquals(4, outbound.size());
+        for (Intent intent : outbound) {
+            assertEquals(32, ipDst(intent).prefixLength());
+            assertEquals(Intent.DEFAULT_INTENT_PRIORITY, intent.priority());
+        }
+    }
+
+    /**
+     * Checks matching the route prefix makes the flows towards a route share
+     * one intent, and so one selector in the flow tables, instead of one each.
+     */
+    @Test
+    public void outboundPrefixMatch() {
+        setProperties("matchRoutePrefix", "true");
+        List<Intent> outbound = puntFlowsTowardsRemotePrefix();
+        assertEquals(1, outbound.size());
+        assertEquals(REMOTE_PREFIX, ipDst(outbound.get(0)));
+        assertEquals(100 + 16 * 5, outbound.get(0).priority());
+        assertEquals(3, component.intentRegistry().suppressed());
+    }
+
+    /**
+     * Checks a flow entering and leaving on the same device is forwarded by a
+     * temporary flow rule instead of an intent, written once for a burst of
+     * packets and again once it expired.
+     */
+    @Test
+    public void fastPathRule() {
+        configure("192.168.50.1", "00:00:00:00:02:01", "10.0.1.2", "10.0.2.2");
+        setProperties("singleHopFlowRules", "true");
+        ConnectPoint neighbor = ConnectPoint.deviceConnectPoint("of:0000000000000003/2");
+        for (int n = 0; n < 3; n++) {
+            punt(neighbor, "192.168.50.3", HOST_IP.toString());
+        }
+        assertEquals(3, sent);
+        assertEquals(3, component.fastPathHandling().count());
+        assertEquals(1, flowRuleService.applied.size());
+        assertEquals(2, component.fastPathSuppressed());
+        assertEquals(1, component.fastPathRuleCount());
+        assertTrue(component.intentRegistry().intents(IntentRegistry.Kind.INBOUND).isEmpty());
+
+        FlowRule rule = flowRuleService.applied.get(0);
+        assertEquals(HOST_CP.deviceId(), rule.deviceId());
+        assertEquals(DefaultTrafficSelector.builder()
+                         .matchEthType(Ethernet.TYPE_IPV4)
+                         .matchIPDst(HOST_IP.toIpPrefix())
+                         .matchInPort(neighbor.port())
+                         .build(),
+                     rule.selector());
+        assertEquals(DefaultTrafficTreatment.builder()
+                         .setEthSrc(MacAddress.valueOf("00:00:00:00:02:01"))
+                         .setEthDst(HOST_MAC)
+                         .setOutput(HOST_CP.port())
+                         .build(),
+                     rule.treatment());
+        assertEquals(Intent.DEFAULT_INTENT_PRIORITY, rule.priority());
+        assertFalse(rule.isPermanent());
+        assertEquals(60, rule.timeout());
+
+        flowRuleService.expire(rule);
+        assertEquals(0, component.fastPathRuleCount());
+        punt(neighbor, "192.168.50.3", HOST_IP.toString());
+        assertEquals(2, flowRuleService.applied.size());
+    }
+
+    /**
+     * Checks a router MAC change rewrites the source MAC of the outbound fast
+     * path rules in place and keeps the inbound ones.
+     */
+    @Test
+    public void fastPathRuleRewrittenOnMacChange() {
+        configure("192.168.50.1", "00:00:00:00:02:01", "10.0.1.2", "10.0.2.2");
+        setProperties("singleHopFlowRules", "true");
+        announce(RouteEvent.Type.ROUTE_ADDED, REMOTE_PREFIX, "10.0.2.2", NEXT_HOP_MAC);
+        ConnectPoint peer = ConnectPoint.deviceConnectPoint("of:0000000000000001/2");
+        punt(peer, "10.0.1.2", "172.16.0.1");
+        punt(ConnectPoint.deviceConnectPoint("of:0000000000000003/2"), "192.168.50.3", HOST_IP.toString());
+        assertEquals(2, flowRuleService.applied.size());
+        FlowRule outbound = flowRuleService.applied.get(0);
+        assertEquals(ROUTER_MAC, mac(outbound.treatment(), L2ModificationInstruction.L2SubType.ETH_SRC));
+
+        MacAddress routerMac = MacAddress.valueOf("00:00:00:00:01:02");
+        configure(routerMac, "192.168.50.1", "00:00:00:00:02:01", "10.0.1.2", "10.0.2.2");
+        assertEquals(1, flowRuleService.modified.size());
+        FlowRule rewritten = flowRuleService.modified.get(0);
+        assertEquals(outbound.id(), rewritten.id());
+        assertEquals(outbound.selector(), rewritten.selector());
+        assertEquals(DefaultTrafficTreatment.builder()
+                         .setEthSrc(routerMac)
+                         .setEthDst(NEXT_HOP_MAC)
+                         .setOutput(PortNumber.portNumber(3))
+                         .build(),
+                     rewritten.treatment());
+        assertEquals(outbound.priority(), rewritten.priority());
+        assertFalse(rewritten.isPermanent());
+        assertEquals(60, rewritten.timeout());
+
+        // Packets punted before the rewrite reached the device do not write the rule again.
+        punt(peer, "10.0.1.2", "172.16.0.1");
+        assertEquals(2, flowRuleService.applied.size());
+        assertEquals(1, component.fastPathSuppressed());
+    }
+
+    private static class TestCoreService extends CoreServiceAdapter {
+        @Override
+        public ApplicationId registerApplication(String name) {
+            return APP_ID;
+        }
+    }
+
+    private static class TestConfigRegistry extends NetworkConfigRegistryAdapter {
+        private NetworkConfigListener listener;
+        private VRouterConfig config;
+
+        @Override
+        public void addListener(NetworkConfigListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <S, C extends Config<S>> C getConfig(S subject, Class<C> configClass) {
+            return (C) config;
+        }
+    }
+
+    private static class TestComponentContext extends ComponentContextAdapter {
+        private final Dictionary<String, Object> properties;
+
+        TestComponentContext(Dictionary<String, Object> properties) {
+            this.properties = properties;
+        }
+
+        @Override
+        public Dictionary getProperties() {
+            return properties;
+        }
+    }
+
+    private static class TestEdgePortService extends EdgePortServiceAdapter {
+        @Override
+        public Iterable<ConnectPoint> getEdgePoints() {
+            return EDGE_POINTS;
+        }
+    }
+
+    private static class TestPacketService extends PacketServiceAdapter {
+        private PacketProcessor processor;
+
+        @Override
+        public void addProcessor(PacketProcessor processor, int priority) {
+            this.processor = processor;
+        }
+    }
+
+    private static class TestHostService extends HostServiceAdapter {
+        @Override
+        public Iterable<Host> getHosts() {
+            return ImmutableSet.of(new DefaultHost(new ProviderId("of", "test"), HostId.hostId(HOST_MAC),
+                                                   HOST_MAC, VlanId.NONE, new HostLocation(HOST_CP, 0),
+                                                   ImmutableSet.of(HOST_IP)));
+        }
+    }
+
+    /**
+     * Puts each peer behind its own interface of the router switch.
+     */
+    private static class TestInterfaceService extends InterfaceServiceAdapter {
+        private static Interface peerInterface(int n) {
+            return new Interface("peer" + n, ConnectPoint.deviceConnectPoint("of:0000000000000001/" + (n + 1)),
+                                 ImmutableList.of(InterfaceIpAddress.valueOf("10.0." + n + ".1/24")),
+                                 MacAddress.valueOf("00:00:00:00:01:01"), VlanId.NONE);
+        }
+
+        @Override
+        public Interface getMatchingInterface(IpAddress ip) {
+            byte[] octets = ip.toOctets();
+            return octets[0] == 10 ? peerInterface(octets[2]) : null;
+        }
+
+        @Override
+        public Set<Interface> getInterfacesByPort(ConnectPoint port) {
+            return ImmutableSet.of(peerInterface((int) port.port().toLong() - 1));
+        }
+    }
+
+    /**
+     * Records the written and modified rules, and serves them as flow entries.
+     */
+    private static class TestFlowRuleService extends FlowRuleServiceAdapter {
+        private final List<FlowRule> applied = Lists.newArrayList();
+        private final List<FlowRule> modified = Lists.newArrayList();
+        private final Map<FlowId, FlowRule> rules = Maps.newLinkedHashMap();
+        private FlowRuleListener listener;
+
+        @Override
+        public void applyFlowRules(FlowRule... flowRules) {
+            for (FlowRule rule : flowRules) {
+                applied.add(rule);
+                rules.put(rule.id(), rule);
+            }
+        }
+
+        @Override
+        public void apply(FlowRuleOperations ops) {
+            for (Set<FlowRuleOperation> stage : ops.stages()) {
+                for (FlowRuleOperation operation : stage) {
+                    if (operation.type() == FlowRuleOperation.Type.MODIFY) {
+                        modified.add(operation.rule());
+                        rules.put(operation.rule().id(), operation.rule());
+                    }
+                }
+            }
+        }
+
+        @Override
+        public Iterable<FlowEntry> getFlowEntriesById(ApplicationId id) {
+            return rules.values().stream().<FlowEntry>map(DefaultFlowEntry::new).collect(Collectors.toList());
+        }
+
+        @Override
+        public void addListener(FlowRuleListener listener) {
+            this.listener = listener;
+        }
+
+        void expire(FlowRule rule) {
+            rules.remove(rule.id());
+            FlowRuleEvent event = new FlowRuleEvent(FlowRuleEvent.Type.RULE_REMOVED, rule);
+            if (listener.isRelevant(event)) {
+                listener.event(event);
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2022-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nycu.sdnfv.vrouter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Tests of the sampling and rate limiting of the packet processor traces.
+ */
+public class EventTraceTest {
+
+    private static long sample(EventTrace trace, EventTrace.Category category, int events) {
+        long traced = 0;
+        for (int n = 0; n < events; n++) {
+            traced += trace.sample(category) ? 1 : 0;
+        }
+        return traced;
+    }
+
+    /**
+     * Checks every event is counted and one out of the sample rate is traced.
+     */
+    @Test
+    public void sampling() {
+        EventTrace trace = new EventTrace("l3:10:1000");
+        assertEquals(100, sample(trace, EventTrace.Category.L3, 1000));
+        assertEquals(1000, trace.events(EventTrace.Category.L3));
+        assertEquals(100, trace.traced(EventTrace.Category.L3));
+    }
+
+    /**
+     * Checks the rate limit caps a burst of sampled events and a sample rate of
+     * 0 disables tracing, while the events are still counted.
+     */
+    @Test
+    public void rateLimitAndDisabled() {
+        EventTrace trace = new EventTrace("drop:1:5,l2:0:100");
+        long traced = sample(trace, EventTrace.Category.DROP, 100);
+        // The bucket refills at 5 per second, the burst takes far less than that.
+        assertTrue(traced >= 5 && traced <= 6);
+
+        assertEquals(0, sample(trace, EventTrace.Category.L2, 100));
+        assertEquals(100, trace.events(EventTrace.Category.L2));
+    }
+
+    /**
+     * Checks categories are parsed case insensitively with blanks around the
+     * fields, and unlisted categories keep their settings.
+     */
+    @Test
+    public void parsing() {
+        EventTrace trace = new EventTrace(AppComponent.TRACE_CATEGORIES_DEFAULT);
+        trace.configure(" INBOUND : 2 : 100 , ,outbound:0:0");
+        assertEquals(50, sample(trace, EventTrace.Category.INBOUND, 100));
+        assertEquals(0, sample(trace, EventTrace.Category.OUTBOUND, 100));
+        assertEquals(0, sample(trace, EventTrace.Category.L3, 100));
+    }
+
+    /**
+     * Checks invalid items are rejected without applying any of the others.
+     */
+    @Test
+    public void invalidTokens() {
+        EventTrace trace = new EventTrace("l3:1:1000");
+        for (String invalid : new String[] {"l3:1", "l3:1:1:1", "l4:1:1", "l3:x:1", "l3:1:-1", "l3:-1:1"}) {
+            try {
+                trace.configure("l3:0:0," + invalid);
+                fail("Accepted " + invalid);
+            } catch (IllegalArgumentException e) {
+                // Expected, the valid item is not applied either.
+            }
+        }
+        assertEquals(10, sample(trace, EventTrace.Category.L3, 10));
+    }
+}
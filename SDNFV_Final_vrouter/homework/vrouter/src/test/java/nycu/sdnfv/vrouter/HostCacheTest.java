@@ -0,0 +1,122 @@
+/*
+ * Copyright 2022-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nycu.sdnfv.vrouter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.onlab.packet.IpAddress;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.VlanId;
+import org.onosproject.net.DefaultHost;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Host;
+import org.onosproject.net.HostId;
+import org.onosproject.net.HostLocation;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.provider.ProviderId;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Tests of the host resolution cache.
+ */
+public class HostCacheTest {
+
+    private static final DeviceId DEVICE = DeviceId.deviceId("of:0000000000000001");
+
+    private static Host host(int n, long mac, IpAddress... ips) {
+        MacAddress address = MacAddress.valueOf(mac);
+        return new DefaultHost(new ProviderId("of", "test"), HostId.hostId(address), address, VlanId.NONE,
+                               new HostLocation(DEVICE, PortNumber.portNumber(n), 0), ImmutableSet.copyOf(ips));
+    }
+
+    private static IpAddress ip(int n) {
+        return IpAddress.valueOf("192.168.50." + n);
+    }
+
+    /**
+     * Checks every address of a host is cached and every lookup counts as a
+     * hit or a miss, apart from the host service lookups.
+     */
+    @Test
+    public void updateAndLookup() {
+        HostCache cache = new HostCache(16);
+        cache.update(host(1, 1, ip(1), ip(2)));
+
+        assertEquals(MacAddress.valueOf(1), cache.get(ip(2)).mac());
+        assertEquals(PortNumber.portNumber(1), cache.get(ip(1)).location().port());
+        assertNull(cache.get(ip(3)));
+        assertNull(cache.get(ip(4)));
+        assertEquals(2, cache.hits());
+        assertEquals(2, cache.misses());
+        assertEquals(0, cache.storeLookups());
+
+        cache.recordStoreLookup();
+        assertEquals(1, cache.storeLookups());
+        assertEquals(2, cache.misses());
+    }
+
+    /**
+     * Checks a removal only drops the addresses still bound to the removed host.
+     */
+    @Test
+    public void removeKeepsNewerBindings() {
+        HostCache cache = new HostCache(16);
+        cache.update(host(1, 1, ip(1), ip(2)));
+        // The second address moved to another host since.
+        cache.update(host(2, 2, ip(2)));
+
+        cache.remove(host(1, 1, ip(1), ip(2)));
+        assertNull(cache.get(ip(1)));
+        assertEquals(MacAddress.valueOf(2), cache.get(ip(2)).mac());
+        assertEquals(1, cache.size());
+    }
+
+    /**
+     * Checks the cache never grows past its maximum size, counts evictions,
+     * and shrinks when the maximum size is lowered.
+     */
+    @Test
+    public void evictionAtMaxSize() {
+        HostCache cache = new HostCache(8);
+        for (int n = 1; n <= 8; n++) {
+            cache.update(host(n, n, ip(n)));
+        }
+        assertEquals(8, cache.size());
+        assertEquals(0, cache.evictions());
+
+        // Refreshing a cached address does not evict.
+        cache.update(host(1, 1, ip(1)));
+        assertEquals(0, cache.evictions());
+
+        for (int n = 9; n <= 12; n++) {
+            cache.update(host(n, n, ip(n)));
+            assertEquals(8, cache.size());
+            assertNotNull(cache.get(ip(n)));
+        }
+        assertEquals(4, cache.evictions());
+
+        cache.setMaxSize(2);
+        assertEquals(2, cache.size());
+        assertEquals(10, cache.evictions());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2022-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nycu.sdnfv.vrouter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.FilteredConnectPoint;
+import org.onosproject.net.intent.Intent;
+import org.onosproject.net.intent.IntentServiceAdapter;
+import org.onosproject.net.intent.Key;
+import org.onosproject.net.intent.PointToPointIntent;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Tests of the coalescing and flushing of the intent submission pipeline.
+ */
+public class IntentBatcherTest {
+
+    private static final ApplicationId APP_ID = new DefaultApplicationId(1, "nycu.sdnfv.vrouter");
+
+    private final TestIntentService intentService = new TestIntentService();
+    private IntentBatcher batcher;
+
+    @After
+    public void tearDown() {
+        batcher.shutdown();
+    }
+
+    private static Intent intent(int n) {
+        return PointToPointIntent.builder()
+            .appId(APP_ID)
+            .key(Key.of("flow-" + n, APP_ID))
+            .filteredIngressPoint(new FilteredConnectPoint(ConnectPoint.deviceConnectPoint("of:0000000000000001/1")))
+            .filteredEgressPoint(new FilteredConnectPoint(ConnectPoint.deviceConnectPoint("of:0000000000000002/1")))
+            .build();
+    }
+
+    /**
+     * Checks queued operations on one key collapse into the last one, in the
+     * order the keys were first queued.
+     */
+    @Test
+    public void coalescesPerKey() {
+        batcher = new IntentBatcher(intentService, 60000, 100);
+        Intent first = intent(1);
+        Intent second = intent(2);
+        batcher.submit(first);
+        batcher.submit(second);
+        batcher.submit(first);
+        batcher.withdraw(first);
+        assertEquals(2, batcher.pending());
+        assertEquals(2, batcher.coalesced());
+
+        batcher.flush();
+        assertEquals(0, batcher.pending());
+        assertEquals(1, intentService.submitted.size());
+        assertSame(second, intentService.submitted.get(0));
+        assertEquals(1, intentService.withdrawn.size());
+        assertSame(first, intentService.withdrawn.get(0));
+    }
+
+    /**
+     * Checks a flush hands the operations over in batches of the configured size.
+     */
+    @Test
+    public void flushesInBatches() {
+        batcher = new IntentBatcher(intentService, 60000, 100);
+        for (int n = 0; n < 7; n++) {
+            batcher.submit(intent(n));
+        }
+        batcher.configure(60000, 3);
+        batcher.flush();
+
+        assertEquals(7, intentService.submitted.size());
+        assertEquals(3, batcher.batches());
+    }
+
+    /**
+     * Checks a full batch is flushed without waiting for the flush interval.
+     */
+    @Test
+    public void fullBatchFlushesEarly() throws InterruptedException {
+        batcher = new IntentBatcher(intentService, 60000, 4);
+        for (int n = 0; n < 4; n++) {
+            batcher.submit(intent(n));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (intentService.submitted.size() < 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(4, intentService.submitted.size());
+        assertEquals(0, batcher.pending());
+    }
+
+    /**
+     * Checks the operations pending at shutdown are still handed over.
+     */
+    @Test
+    public void shutdownFlushes() {
+        batcher = new IntentBatcher(intentService, 60000, 100);
+        batcher.submit(intent(1));
+        batcher.shutdown();
+        assertEquals(1, intentService.submitted.size());
+    }
+
+    private static class TestIntentService extends IntentServiceAdapter {
+        private final List<Intent> submitted = Lists.newCopyOnWriteArrayList();
+        private final List<Intent> withdrawn = Lists.newCopyOnWriteArrayList();
+
+        @Override
+        public void submit(Intent intent) {
+            submitted.add(intent);
+        }
+
+        @Override
+        public void withdraw(Intent intent) {
+            withdrawn.add(intent);
+        }
+    }
+}
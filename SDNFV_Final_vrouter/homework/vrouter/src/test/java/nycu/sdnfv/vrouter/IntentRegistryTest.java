@@ -0,0 +1,219 @@
+/*
+ * Copyright 2022-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nycu.sdnfv.vrouter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.IpPrefix;
+import org.onlab.packet.MacAddress;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.FilteredConnectPoint;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.TrafficSelector;
+import org.onosproject.net.intent.Intent;
+import org.onosproject.net.intent.IntentEvent;
+import org.onosproject.net.intent.IntentListener;
+import org.onosproject.net.intent.IntentServiceAdapter;
+import org.onosproject.net.intent.PointToPointIntent;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Tests of the deduplication and state tracking of the intent registry.
+ */
+public class IntentRegistryTest {
+
+    private static final ApplicationId APP_ID = new DefaultApplicationId(1, "nycu.sdnfv.vrouter");
+    private static final ConnectPoint INGRESS = ConnectPoint.deviceConnectPoint("of:0000000000000001/1");
+    private static final ConnectPoint EGRESS = ConnectPoint.deviceConnectPoint("of:0000000000000002/1");
+
+    private TestIntentService intentService;
+    private IntentBatcher batcher;
+    private IntentRegistry registry;
+
+    @Before
+    public void setUp() {
+        intentService = new TestIntentService();
+        // Flushed by the tests only.
+        batcher = new IntentBatcher(intentService, 60000, 100000);
+        registry = new IntentRegistry(intentService, batcher, APP_ID);
+        registry.activate();
+    }
+
+    @After
+    public void tearDown() {
+        registry.deactivate();
+        batcher.shutdown();
+    }
+
+    /**
+     * Builds the intent the packet processor would build for a punted packet,
+     * a new but identical object every time.
+     */
+    private PointToPointIntent flowIntent(String host, MacAddress hostMac) {
+        TrafficSelector selector = DefaultTrafficSelector.builder()
+            .matchEthType(Ethernet.TYPE_IPV4)
+            .matchIPDst(IpPrefix.valueOf(host))
+            .build();
+        return PointToPointIntent.builder()
+            .appId(APP_ID)
+            .key(registry.flowKey(selector, INGRESS, EGRESS))
+            .selector(selector)
+            .treatment(DefaultTrafficTreatment.builder().setEthDst(hostMac).build())
+            .filteredIngressPoint(new FilteredConnectPoint(INGRESS))
+            .filteredEgressPoint(new FilteredConnectPoint(EGRESS))
+            .build();
+    }
+
+    /**
+     * Checks 10k packets of one flow compile exactly one intent.
+     */
+    @Test
+    public void burstCompilesOnce() {
+        int accepted = 0;
+        for (int n = 0; n < 10000; n++) {
+            accepted += registry.submit(flowIntent("192.168.50.2/32", MacAddress.valueOf(2)),
+                                        IntentRegistry.Kind.INBOUND, 1) ? 1 : 0;
+        }
+        batcher.flush();
+
+        assertEquals(1, accepted);
+        assertEquals(1, intentService.submitted.size());
+        assertEquals(1, registry.submitted());
+        assertEquals(9999, registry.suppressed());
+        assertEquals(1, registry.intents(IntentRegistry.Kind.INBOUND).size());
+        assertTrue(registry.intents(IntentRegistry.Kind.OUTBOUND).isEmpty());
+    }
+
+    /**
+     * Checks a changed intent under the same key replaces the registered one.
+     */
+    @Test
+    public void changedIntentReplaces() {
+        PointToPointIntent first = flowIntent("192.168.50.2/32", MacAddress.valueOf(2));
+        PointToPointIntent moved = flowIntent("192.168.50.2/32", MacAddress.valueOf(3));
+        assertTrue(registry.submit(first, IntentRegistry.Kind.INBOUND));
+        intentService.post(IntentEvent.Type.INSTALLED, first);
+        assertTrue(registry.submit(moved, IntentRegistry.Kind.INBOUND));
+
+        assertSame(moved, registry.get(moved.key()));
+        batcher.flush();
+        // The two submissions of the key were coalesced by the pipeline.
+        assertEquals(1, intentService.submitted.size());
+        assertSame(moved, intentService.submitted.get(0));
+    }
+
+    /**
+     * Checks a failed intent leaves the registry so the next packet submits it again.
+     */
+    @Test
+    public void failedIntentIsSubmittedAgain() {
+        PointToPointIntent intent = flowIntent("192.168.50.2/32", MacAddress.valueOf(2));
+        assertTrue(registry.submit(intent, IntentRegistry.Kind.INBOUND));
+        batcher.flush();
+        intentService.post(IntentEvent.Type.FAILED, intent);
+
+        assertNull(registry.get(intent.key()));
+        assertTrue(registry.submit(flowIntent("192.168.50.2/32", MacAddress.valueOf(2)),
+                                   IntentRegistry.Kind.INBOUND));
+        batcher.flush();
+        assertEquals(2, intentService.submitted.size());
+    }
+
+    /**
+     * Checks a corrupt intent leaves the registry like a failed one, instead
+     * of suppressing the later submissions of its flow.
+     */
+    @Test
+    public void corruptIntentIsSubmittedAgain() {
+        PointToPointIntent intent = flowIntent("192.168.50.2/32", MacAddress.valueOf(2));
+        assertTrue(registry.submit(intent, IntentRegistry.Kind.INBOUND));
+        batcher.flush();
+        intentService.post(IntentEvent.Type.CORRUPT, intent);
+
+        assertNull(registry.get(intent.key()));
+        assertTrue(registry.intents(IntentRegistry.Kind.INBOUND).isEmpty());
+        assertTrue(registry.submit(flowIntent("192.168.50.2/32", MacAddress.valueOf(2)),
+                                   IntentRegistry.Kind.INBOUND));
+        assertEquals(0, registry.suppressed());
+        batcher.flush();
+        assertEquals(2, intentService.submitted.size());
+    }
+
+    /**
+     * Checks the withdrawal event of an intent submitted again in the meantime
+     * keeps the new submission.
+     */
+    @Test
+    public void trailingWithdrawalKeepsResubmission() {
+        PointToPointIntent intent = flowIntent("192.168.50.2/32", MacAddress.valueOf(2));
+        registry.submit(intent, IntentRegistry.Kind.INBOUND);
+        intentService.post(IntentEvent.Type.INSTALLED, intent);
+        assertSame(intent, registry.withdraw(intent.key()));
+        assertNull(registry.withdraw(intent.key()));
+
+        assertTrue(registry.submit(intent, IntentRegistry.Kind.INBOUND));
+        intentService.post(IntentEvent.Type.WITHDRAWN, intent);
+        assertSame(intent, registry.get(intent.key()));
+        assertFalse(registry.submit(intent, IntentRegistry.Kind.INBOUND));
+
+        registry.withdrawAll();
+        assertEquals(0, registry.size());
+    }
+
+    /**
+     * Records the submitted intents and delivers the events posted by the tests.
+     */
+    private static class TestIntentService extends IntentServiceAdapter {
+        private final List<Intent> submitted = Lists.newCopyOnWriteArrayList();
+        private final List<IntentListener> listeners = Lists.newCopyOnWriteArrayList();
+
+        @Override
+        public void submit(Intent intent) {
+            submitted.add(intent);
+        }
+
+        @Override
+        public void addListener(IntentListener listener) {
+            listeners.add(listener);
+        }
+
+        @Override
+        public void removeListener(IntentListener listener) {
+            listeners.remove(listener);
+        }
+
+        void post(IntentEvent.Type type, Intent intent) {
+            IntentEvent event = new IntentEvent(type, intent);
+            listeners.stream()
+                .filter(listener -> listener.isRelevant(event))
+                .forEach(listener -> listener.event(event));
+        }
+    }
+}
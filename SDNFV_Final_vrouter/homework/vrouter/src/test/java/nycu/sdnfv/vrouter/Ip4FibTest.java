@@ -0,0 +1,226 @@
+/*
+ * Copyright 2022-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nycu.sdnfv.vrouter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.IpPrefix;
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.ConnectPoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Tests of the longest prefix match of the forwarding table.
+ */
+public class Ip4FibTest {
+
+    private static final ConnectPoint EGRESS = ConnectPoint.deviceConnectPoint("of:0000000000000001/1");
+    private static final MacAddress NEXT_HOP = MacAddress.valueOf("00:00:00:00:00:01");
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private static Ip4Fib.Entry entry(String prefix) {
+        return entry(IpPrefix.valueOf(prefix));
+    }
+
+    private static Ip4Fib.Entry entry(IpPrefix prefix) {
+        return new Ip4Fib.Entry(prefix, EGRESS, NEXT_HOP);
+    }
+
+    private static int address(String ip) {
+        return Ip4Address.valueOf(ip).toInt();
+    }
+
+    private static IpPrefix match(Ip4Fib fib, String ip) {
+        Ip4Fib.Entry entry = fib.lookup(address(ip));
+        return entry != null ? entry.prefix() : null;
+    }
+
+    /**
+     * Checks nested and sibling prefixes resolve to the longest match.
+     */
+    @Test
+    public void overlappingPrefixes() {
+        Ip4Fib fib = new Ip4Fib();
+        fib.put(entry("10.0.0.0/8"));
+        fib.put(entry("10.1.0.0/16"));
+        fib.put(entry("10.1.2.0/24"));
+        fib.put(entry("10.1.3.0/24"));
+        fib.put(entry("10.128.0.0/9"));
+
+        assertEquals(IpPrefix.valueOf("10.1.2.0/24"), match(fib, "10.1.2.3"));
+        assertEquals(IpPrefix.valueOf("10.1.3.0/24"), match(fib, "10.1.3.3"));
+        assertEquals(IpPrefix.valueOf("10.1.0.0/16"), match(fib, "10.1.4.3"));
+        assertEquals(IpPrefix.valueOf("10.0.0.0/8"), match(fib, "10.2.0.1"));
+        assertEquals(IpPrefix.valueOf("10.128.0.0/9"), match(fib, "10.200.0.1"));
+        assertNull(match(fib, "11.0.0.1"));
+        assertEquals(5, fib.size());
+    }
+
+    /**
+     * Checks the default route and host routes.
+     */
+    @Test
+    public void defaultAndHostRoutes() {
+        Ip4Fib fib = new Ip4Fib();
+        fib.put(entry("192.168.1.1/32"));
+        assertNull(match(fib, "192.168.1.2"));
+
+        fib.put(entry("0.0.0.0/0"));
+        assertEquals(IpPrefix.valueOf("0.0.0.0/0"), match(fib, "192.168.1.2"));
+        assertEquals(IpPrefix.valueOf("192.168.1.1/32"), match(fib, "192.168.1.1"));
+        assertEquals(IpPrefix.valueOf("0.0.0.0/0"), match(fib, "255.255.255.255"));
+
+        fib.put(entry("192.168.1.0/32"));
+        assertEquals(IpPrefix.valueOf("192.168.1.0/32"), match(fib, "192.168.1.0"));
+
+        assertEquals(IpPrefix.valueOf("0.0.0.0/0"), fib.remove(IpPrefix.valueOf("0.0.0.0/0")).prefix());
+        assertNull(match(fib, "192.168.1.2"));
+        assertEquals(2, fib.size());
+    }
+
+    /**
+     * Checks removals keep the covering prefixes, release the trie nodes and
+     * a prefix can be added back.
+     */
+    @Test
+    public void removeAndReAdd() {
+        Ip4Fib fib = new Ip4Fib();
+        fib.put(entry("10.0.0.0/8"));
+        fib.put(entry("10.1.0.0/16"));
+        fib.put(entry("10.1.2.0/24"));
+
+        assertNull(fib.remove(IpPrefix.valueOf("10.1.0.0/24")));
+        assertNull(fib.remove(IpPrefix.valueOf("10.1.2.0/25")));
+        assertEquals(IpPrefix.valueOf("10.1.0.0/16"), fib.remove(IpPrefix.valueOf("10.1.0.0/16")).prefix());
+        assertNull(fib.remove(IpPrefix.valueOf("10.1.0.0/16")));
+        assertEquals(IpPrefix.valueOf("10.1.2.0/24"), match(fib, "10.1.2.3"));
+        assertEquals(IpPrefix.valueOf("10.0.0.0/8"), match(fib, "10.1.4.3"));
+
+        Ip4Fib.Entry replaced = entry("10.1.0.0/16");
+        fib.put(replaced);
+        assertSame(replaced, fib.lookup(address("10.1.4.3")));
+
+        fib.remove(IpPrefix.valueOf("10.0.0.0/8"));
+        fib.remove(IpPrefix.valueOf("10.1.0.0/16"));
+        fib.remove(IpPrefix.valueOf("10.1.2.0/24"));
+        assertEquals(0, fib.size());
+        assertEquals(1, fib.nodes());
+        assertNull(match(fib, "10.1.2.3"));
+    }
+
+    /**
+     * Checks random updates against a linear scan of the prefixes and that
+     * nodes of removed prefixes are reused instead of growing the trie.
+     */
+    @Test
+    public void randomUpdates() {
+        Random random = new Random(1);
+        Ip4Fib fib = new Ip4Fib();
+        Map<IpPrefix, Ip4Fib.Entry> expected = Maps.newHashMap();
+        int maxNodes = 0;
+        for (int n = 0; n < 20000; n++) {
+            // Few leading bits so the prefixes overlap a lot.
+            IpPrefix prefix = IpPrefix.valueOf(Ip4Address.valueOf(random.nextInt() & 0xf0ff0000),
+                                               random.nextInt(33));
+            if (random.nextInt(3) == 0) {
+                assertSame(expected.remove(prefix), fib.remove(prefix));
+            } else {
+                Ip4Fib.Entry entry = entry(prefix);
+                fib.put(entry);
+                expected.put(prefix, entry);
+            }
+            assertEquals(expected.size(), fib.size());
+            maxNodes = Math.max(maxNodes, fib.nodes());
+        }
+        // A path-compressed trie has at most two nodes per prefix.
+        assertTrue(fib.nodes() <= 2 * expected.size() + 1);
+
+        for (int n = 0; n < 5000; n++) {
+            int address = random.nextInt() & 0xf0ffff00;
+            Ip4Fib.Entry best = null;
+            for (Ip4Fib.Entry entry : expected.values()) {
+                if (entry.prefix().contains(Ip4Address.valueOf(address)) && (best == null
+                        || entry.prefix().prefixLength() > best.prefix().prefixLength())) {
+                    best = entry;
+                }
+            }
+            assertSame(best, fib.lookup(address));
+        }
+
+        expected.keySet().forEach(fib::remove);
+        assertEquals(1, fib.nodes());
+        expected.values().forEach(fib::put);
+        assertTrue(fib.nodes() <= maxNodes);
+    }
+
+    /**
+     * Measures the insertion time and the lookup latency of tables of 1k, 100k
+     * and 1M prefixes. Only run with -Dperf=true.
+     */
+    @Test
+    public void sizeAndLatency() {
+        assumeTrue(Boolean.getBoolean("perf"));
+        int lookups = 1000000;
+        for (int prefixes : new int[] {1000, 100000, 1000000}) {
+            Random random = new Random(prefixes);
+            List<Ip4Fib.Entry> entries = Lists.newArrayListWithCapacity(prefixes);
+            for (int n = 0; n < prefixes; n++) {
+                // Lengths of /16 to /24, where most routes of a routing table are.
+                int length = 16 + random.nextInt(9);
+                entries.add(entry(IpPrefix.valueOf(Ip4Address.valueOf(random.nextInt()), length)));
+            }
+            int[] addresses = new int[lookups];
+            for (int n = 0; n < lookups; n++) {
+                addresses[n] = random.nextInt();
+            }
+
+            Ip4Fib fib = new Ip4Fib();
+            long start = System.nanoTime();
+            entries.forEach(fib::put);
+            long insertNanos = System.nanoTime() - start;
+
+            long found = 0;
+            for (int round = 0; round < 2; round++) {
+                // The first round only warms up the lookup.
+                found = 0;
+                start = System.nanoTime();
+                for (int address : addresses) {
+                    found += fib.lookup(address) != null ? 1 : 0;
+                }
+            }
+            long lookupNanos = System.nanoTime() - start;
+            log.info("{} prefixes ({} nodes): inserted in {} ms, {} ns/lookup, {} matched",
+                     fib.size(), fib.nodes(), TimeUnit.NANOSECONDS.toMillis(insertNanos),
+                     lookupNanos / lookups, found);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2022-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.winlab.bridge;
+
+import java.util.Map;
+import java.util.function.Function;
+
+import org.onlab.util.KryoNamespace;
+import org.onosproject.net.DeviceId;
+import org.onosproject.store.serializers.KryoNamespaces;
+import org.onosproject.store.service.EventuallyConsistentMap;
+import org.onosproject.store.service.EventuallyConsistentMapEvent;
+import org.onosproject.store.service.EventuallyConsistentMapListener;
+import org.onosproject.store.service.StorageService;
+import org.onosproject.store.service.WallClockTimestamp;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Cluster-wide copy of the MAC tables.
+ * <p>
+ * Every instance keeps forwarding from its local {@link MacTable}s; new and
+ * moved addresses are published to an eventually consistent map and the
+ * addresses published by the other instances are written into the local
+ * tables, so the packet path never reads from the cluster and an instance
+ * taking over a device already knows its hosts. Refreshes of an address this
+ * instance published are not published again, aging is applied by the
+ * instance seeing the traffic.
+ * <p>
+ * Only the instances that published an address withdraw it when it ages out;
+ * the copies of the other instances age out of their local tables only, so an
+ * instance without traffic from a host never takes it away from the owner.
+ * An instance seeing traffic from an address published by another one, after
+ * a mastership change, publishes it too and so becomes an owner; it publishes
+ * the address again when another owner withdraws it.
+ */
+public final class DistributedMacStore {
+
+    private static final String MAP_NAME = "nctu-winlab-bridge-mac-table";
+
+    private final EventuallyConsistentMap<MacKey, Long> macs;
+    private final Function<DeviceId, MacTable> tables;
+    private final EventuallyConsistentMapListener<MacKey, Long> listener = new InternalMapListener();
+    // Addresses published by this instance on each device, with the port they were published on.
+    private final Map<DeviceId, MacTable> owned = Maps.newConcurrentMap();
+
+    /**
+     * Creates a store backed by the given map.
+     *
+     * @param macs cluster-wide map of learned addresses to port numbers
+     * @param tables local MAC table of a device, created if missing
+     */
+    public DistributedMacStore(EventuallyConsistentMap<MacKey, Long> macs, Function<DeviceId, MacTable> tables) {
+        this.macs = macs;
+        this.tables = tables;
+    }
+
+    /**
+     * Builds the cluster-wide map of learned addresses.
+     *
+     * @param storageService storage service
+     * @return eventually consistent map
+     */
+    public static EventuallyConsistentMap<MacKey, Long> buildMap(StorageService storageService) {
+        KryoNamespace serializer = KryoNamespace.newBuilder()
+            .register(KryoNamespaces.BASIC)
+            .nextId(KryoNamespaces.BEGIN_USER_CUSTOM_ID)
+            .register(new MacKey.KeySerializer(), MacKey.class)
+            .build("BridgeMacTable");
+        return storageService.<MacKey, Long>eventuallyConsistentMapBuilder()
+            .withName(MAP_NAME)
+            .withSerializer(serializer)
+            .withTimestampProvider((key, port) -> new WallClockTimestamp())
+            .build();
+    }
+
+    /**
+     * Loads the addresses already known to the cluster and starts following updates.
+     */
+    public void activate() {
+        macs.addListener(listener);
+        long now = System.currentTimeMillis();
+        for (Map.Entry<MacKey, Long> entry : macs.entrySet()) {
+            tables.apply(entry.getKey().deviceId()).learn(entry.getKey().mac(), entry.getValue(), now);
+        }
+    }
+
+    public void deactivate() {
+        macs.removeListener(listener);
+        owned.clear();
+    }
+
+    /**
+     * Publishes an address learned, moved or refreshed on this instance,
+     * unless this instance already published it on that port.
+     *
+     * @param deviceId device identifier
+     * @param mac MAC address packed into a long
+     * @param port port number
+     */
+    public void learned(DeviceId deviceId, long mac, long port) {
+        MacTable table = owned.computeIfAbsent(deviceId, id -> new MacTable(Integer.MAX_VALUE));
+        if (table.get(mac) != port) {
+            table.learn(mac, port, 0);
+            macs.put(new MacKey(deviceId, mac), port);
+        }
+    }
+
+    /**
+     * Withdraws an address aged out on this instance, if this instance
+     * published it.
+     *
+     * @param deviceId device identifier
+     * @param mac MAC address packed into a long
+     */
+    public void expired(DeviceId deviceId, long mac) {
+        MacTable table = owned.get(deviceId);
+        if (table != null && table.remove(mac) != MacTable.NO_PORT) {
+            macs.remove(new MacKey(deviceId, mac));
+        }
+    }
+
+    // Returns the port this instance published an address on, or NO_PORT.
+    private long ownedPort(MacKey key) {
+        MacTable table = owned.get(key.deviceId());
+        return table == null ? MacTable.NO_PORT : table.get(key.mac());
+    }
+
+    private class InternalMapListener implements EventuallyConsistentMapListener<MacKey, Long> {
+        @Override
+        public void event(EventuallyConsistentMapEvent<MacKey, Long> event) {
+            MacKey key = event.key();
+            MacTable table = tables.apply(key.deviceId());
+            long ownedPort = ownedPort(key);
+            switch (event.type()) {
+            case PUT:
+                if (ownedPort != MacTable.NO_PORT && ownedPort != event.value()) {
+                    // Another instance published the address on another port and took it over.
+                    owned.get(key.deviceId()).remove(key.mac());
+                }
+                table.learn(key.mac(), event.value(), System.currentTimeMillis());
+                break;
+            case REMOVE:
+                if (ownedPort != MacTable.NO_PORT) {
+                    // Another owner aged the address out, this instance still forwards its traffic.
+                    macs.put(key, ownedPort);
+                } else {
+                    table.remove(key.mac());
+                }
+                break;
+            default:
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2022-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.winlab.bridge;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.edge.EdgePortService;
+import org.onosproject.net.topology.Topology;
+import org.onosproject.net.topology.TopologyEdge;
+import org.onosproject.net.topology.TopologyGraph;
+import org.onosproject.net.topology.TopologyService;
+import org.onosproject.net.topology.TopologyVertex;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Ports packets are flooded on, following a spanning tree of the topology.
+ * <p>
+ * One tree spans each connected component of the infrastructure links, so a
+ * flooded packet crosses every tree link once and cannot loop. A device
+ * floods on its tree ports and its edge ports. When the topology changes the
+ * tree is rebuilt from the links of the previous tree that still exist, so a
+ * change only moves the tree where a tree link went away. Unicast towards a
+ * known host follows the tree as well, so a host is learned on the same port
+ * whether its packets were flooded or not.
+ */
+public final class FloodTree {
+
+    private final TopologyService topologyService;
+    private final EdgePortService edgePortService;
+
+    // Both end points of every tree link.
+    private volatile Set<ConnectPoint> treePoints = ImmutableSet.of();
+    private volatile Tree tree = new Tree(Maps.newHashMap(), Maps.newHashMap());
+
+    // Tree ports and neighbors by device, with the flood ports computed from them.
+    private static final class Tree {
+        private final Map<DeviceId, Set<PortNumber>> treePorts;
+        private final Map<DeviceId, Map<PortNumber, DeviceId>> neighbors;
+        private final Map<DeviceId, Set<PortNumber>> floodPorts = Maps.newConcurrentMap();
+
+        private Tree(Map<DeviceId, Set<PortNumber>> treePorts, Map<DeviceId, Map<PortNumber, DeviceId>> neighbors) {
+            this.treePorts = treePorts;
+            this.neighbors = neighbors;
+        }
+    }
+
+    /**
+     * Creates a flood tree of the given topology.
+     *
+     * @param topologyService topology service
+     * @param edgePortService edge port service
+     */
+    public FloodTree(TopologyService topologyService, EdgePortService edgePortService) {
+        this.topologyService = topologyService;
+        this.edgePortService = edgePortService;
+    }
+
+    /**
+     * Rebuilds the tree for a new topology.
+     *
+     * @param topology current topology, ignored if null
+     */
+    public synchronized void update(Topology topology) {
+        if (topology == null) {
+            return;
+        }
+        TopologyGraph graph = topologyService.getGraph(topology);
+        Map<DeviceId, DeviceId> parents = Maps.newHashMap();
+        for (TopologyVertex vertex : graph.getVertexes()) {
+            parents.put(vertex.deviceId(), vertex.deviceId());
+        }
+
+        // Links of the previous tree are taken first so they stay in the tree.
+        Set<ConnectPoint> previous = treePoints;
+        List<Link> links = Lists.newArrayList();
+        List<Link> others = Lists.newArrayList();
+        for (TopologyEdge edge : graph.getEdges()) {
+            Link link = edge.link();
+            if (previous.contains(link.src()) && previous.contains(link.dst())) {
+                links.add(link);
+            } else {
+                others.add(link);
+            }
+        }
+        links.addAll(others);
+
+        Set<ConnectPoint> points = Sets.newHashSet();
+        Map<DeviceId, Set<PortNumber>> ports = Maps.newHashMap();
+        Map<DeviceId, Map<PortNumber, DeviceId>> neighbors = Maps.newHashMap();
+        for (Link link : links) {
+            DeviceId src = root(parents, link.src().deviceId());
+            DeviceId dst = root(parents, link.dst().deviceId());
+            if (src.equals(dst)) {
+                // Either the reverse direction of a tree link or a loop.
+                continue;
+            }
+            parents.put(src, dst);
+            for (ConnectPoint point : new ConnectPoint[] {link.src(), link.dst()}) {
+                points.add(point);
+                ports.computeIfAbsent(point.deviceId(), id -> Sets.newHashSet()).add(point.port());
+            }
+            neighbors.computeIfAbsent(link.src().deviceId(), id -> Maps.newHashMap())
+                .put(link.src().port(), link.dst().deviceId());
+            neighbors.computeIfAbsent(link.dst().deviceId(), id -> Maps.newHashMap())
+                .put(link.dst().port(), link.src().deviceId());
+        }
+
+        treePoints = ImmutableSet.copyOf(points);
+        tree = new Tree(ports, neighbors);
+    }
+
+    private static DeviceId root(Map<DeviceId, DeviceId> parents, DeviceId id) {
+        DeviceId root = parents.computeIfAbsent(id, k -> k);
+        while (!root.equals(parents.get(root))) {
+            DeviceId grandParent = parents.get(parents.get(root));
+            parents.put(root, grandParent);
+            root = grandParent;
+        }
+        return root;
+    }
+
+    /**
+     * Forgets the flood ports of a device, after its edge ports changed.
+     *
+     * @param deviceId device identifier
+     */
+    public void invalidate(DeviceId deviceId) {
+        tree.floodPorts.remove(deviceId);
+    }
+
+    /**
+     * Returns the tree ports and the edge ports of a device.
+     *
+     * @param deviceId device identifier
+     * @return ports to flood on
+     */
+    public Set<PortNumber> floodPorts(DeviceId deviceId) {
+        Tree current = tree;
+        Set<PortNumber> ports = current.floodPorts.get(deviceId);
+        if (ports == null) {
+            ImmutableSet.Builder<PortNumber> builder = ImmutableSet.builder();
+            builder.addAll(current.treePorts.getOrDefault(deviceId, ImmutableSet.of()));
+            edgePortService.getEdgePoints(deviceId).forEach(point -> builder.add(point.port()));
+            ports = builder.build();
+            current.floodPorts.put(deviceId, ports);
+        }
+        return ports;
+    }
+
+    /**
+     * Returns the tree port a device sends a packet towards another device on.
+     *
+     * @param src device sending the packet
+     * @param dst destination device
+     * @return tree port or null if the tree does not connect the devices
+     */
+    public PortNumber firstHop(DeviceId src, DeviceId dst) {
+        Map<DeviceId, Map<PortNumber, DeviceId>> neighbors = tree.neighbors;
+        // Breadth-first walk remembering the port of src each device is reached through.
+        Map<DeviceId, PortNumber> reached = Maps.newHashMap();
+        Deque<DeviceId> queue = new ArrayDeque<>();
+        neighbors.getOrDefault(src, ImmutableMap.of()).forEach((port, next) -> {
+            reached.put(next, port);
+            queue.add(next);
+        });
+        reached.putIfAbsent(src, PortNumber.P0);
+        while (!queue.isEmpty()) {
+            DeviceId current = queue.poll();
+            if (current.equals(dst)) {
+                return reached.get(current);
+            }
+            PortNumber port = reached.get(current);
+            neighbors.getOrDefault(current, ImmutableMap.of()).forEach((p, next) -> {
+                if (reached.putIfAbsent(next, port) == null) {
+                    queue.add(next);
+                }
+            });
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of links in the tree.
+     *
+     * @return tree size
+     */
+    public int size() {
+        return treePoints.size() / 2;
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2022-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.winlab.bridge;
+
+import static org.onlab.util.Tools.groupedThreads;
+
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+/**
+ * Coalescing installer of forwarding rules.
+ * <p>
+ * Rules are queued per device and handed to the flow rule service as one
+ * {@link FlowRuleOperations} batch per device, every flush interval or as soon
+ * as a device has a full batch pending. A rule identical to a pending one is
+ * dropped, so a burst of packets of one conversation installs its rule once.
+ * <p>
+ * The batch sizes and flush latency are logged every minute rules were
+ * applied in, and once more at shutdown.
+ */
+public final class FlowRuleInstaller {
+
+    private static final long REPORT_INTERVAL_SECONDS = 60;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final FlowRuleService flowRuleService;
+    private final ScheduledExecutorService executor =
+        Executors.newSingleThreadScheduledExecutor(groupedThreads("onos/bridge", "flow-installer", log));
+
+    private final Histogram batchSizes = new Histogram();
+    private final Histogram flushLatency = new Histogram();
+    private final LongAdder deduplicated = new LongAdder();
+
+    // Pending rules by device, guarded by this.
+    private final Map<DeviceId, Batch> pending = Maps.newHashMap();
+    private ScheduledFuture<?> flushTask;
+    private volatile int maxBatchSize;
+    private volatile long reportedBatches;
+
+    private static final class Batch {
+        private final Set<FlowRule> rules = new LinkedHashSet<>();
+        private final long queuedNanos = System.nanoTime();
+    }
+
+    /**
+     * Creates an installer for the given flow rule service.
+     *
+     * @param flowRuleService flow rule service
+     * @param flushIntervalMillis maximum time a rule stays queued
+     * @param maxBatchSize number of pending rules of a device triggering an early flush
+     */
+    public FlowRuleInstaller(FlowRuleService flowRuleService, long flushIntervalMillis, int maxBatchSize) {
+        this.flowRuleService = flowRuleService;
+        configure(flushIntervalMillis, maxBatchSize);
+        executor.scheduleWithFixedDelay(this::report, REPORT_INTERVAL_SECONDS, REPORT_INTERVAL_SECONDS,
+                                        TimeUnit.SECONDS);
+    }
+
+    /**
+     * Changes the flush interval and the batch size.
+     *
+     * @param flushIntervalMillis maximum time a rule stays queued
+     * @param maxBatchSize number of pending rules of a device triggering an early flush
+     */
+    public synchronized void configure(long flushIntervalMillis, int maxBatchSize) {
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        if (flushTask != null) {
+            flushTask.cancel(false);
+        }
+        long interval = Math.max(1, flushIntervalMillis);
+        flushTask = executor.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues the installation of a rule.
+     *
+     * @param rule flow rule
+     */
+    public void install(FlowRule rule) {
+        DeviceId deviceId = rule.deviceId();
+        boolean full;
+        synchronized (this) {
+            Batch batch = pending.computeIfAbsent(deviceId, id -> new Batch());
+            if (!batch.rules.add(rule)) {
+                deduplicated.increment();
+                return;
+            }
+            full = batch.rules.size() == maxBatchSize;
+        }
+        if (full) {
+            executor.execute(() -> flush(deviceId));
+        }
+    }
+
+    /**
+     * Drops the pending rules of a device matching a filter.
+     *
+     * @param deviceId device identifier
+     * @param filter rules to drop
+     * @return number of dropped rules
+     */
+    public synchronized int discard(DeviceId deviceId, Predicate<FlowRule> filter) {
+        Batch batch = pending.get(deviceId);
+        if (batch == null) {
+            return 0;
+        }
+        int before = batch.rules.size();
+        batch.rules.removeIf(filter);
+        return before - batch.rules.size();
+    }
+
+    /**
+     * Applies the pending rules of all devices.
+     */
+    public void flush() {
+        for (DeviceId deviceId : pendingDevices()) {
+            flush(deviceId);
+        }
+    }
+
+    private synchronized ImmutableList<DeviceId> pendingDevices() {
+        return ImmutableList.copyOf(pending.keySet());
+    }
+
+    private void flush(DeviceId deviceId) {
+        Batch batch;
+        synchronized (this) {
+            batch = pending.remove(deviceId);
+        }
+        if (batch == null || batch.rules.isEmpty()) {
+            return;
+        }
+
+        FlowRuleOperations.Builder operations = FlowRuleOperations.builder();
+        batch.rules.forEach(operations::add);
+        flowRuleService.apply(operations.build());
+
+        batchSizes.record(batch.rules.size());
+        flushLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - batch.queuedNanos));
+        log.debug("Applied {} rules on `{}`.", batch.rules.size(), deviceId);
+    }
+
+    /**
+     * Applies the pending rules and stops the installer thread.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        report();
+    }
+
+    private void report() {
+        long batches = batchSizes.count();
+        if (batches == reportedBatches) {
+            return;
+        }
+        reportedBatches = batches;
+        log.info("Flow rule batches: {}; flush latency (us): {}; duplicate rules dropped: {}",
+                 batchSizes, flushLatency, deduplicated());
+    }
+
+    /**
+     * Returns the number of rules per applied batch.
+     *
+     * @return batch size histogram
+     */
+    public Histogram batchSizes() {
+        return batchSizes;
+    }
+
+    /**
+     * Returns the time in microseconds from the first rule queued in a batch
+     * until the batch is applied.
+     *
+     * @return flush latency histogram
+     */
+    public Histogram flushLatency() {
+        return flushLatency;
+    }
+
+    /**
+     * Returns the number of rules dropped because an identical rule was pending.
+     *
+     * @return number of dropped duplicates
+     */
+    public long deduplicated() {
+        return deduplicated.sum();
+    }
+}
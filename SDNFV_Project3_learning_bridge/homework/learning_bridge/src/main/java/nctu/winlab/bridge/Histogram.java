@@ -0,0 +1,95 @@
+/*
+ * Copyright 2022-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.winlab.bridge;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of non-negative samples with power of two buckets.
+ * <p>
+ * Bucket {@code i} counts the samples below {@code 2^i} not counted by a lower
+ * bucket, so percentiles are reported as the highest value of their bucket.
+ */
+public final class Histogram {
+
+    private static final int BUCKETS = 64;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public Histogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records one sample.
+     *
+     * @param value sample, negative values are recorded as 0
+     */
+    public void record(long value) {
+        long v = Math.max(0, value);
+        buckets[BUCKETS - Long.numberOfLeadingZeros(v)].increment();
+        count.increment();
+        total.add(v);
+        max.accumulate(v);
+    }
+
+    /**
+     * Returns an upper bound of the given percentile.
+     *
+     * @param percentile percentile between 0 and 100
+     * @return highest value of the bucket the percentile falls in
+     */
+    public long percentile(double percentile) {
+        long samples = count.sum();
+        if (samples == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(samples * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            seen += buckets[i].sum();
+            if (seen >= rank) {
+                return Math.min((1L << i) - 1, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long mean() {
+        long samples = count.sum();
+        return samples == 0 ? 0 : total.sum() / samples;
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%d p50<=%d p99<=%d max=%d",
+                             count(), mean(), percentile(50), percentile(99), max());
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2022-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.winlab.bridge;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Host;
+import org.onosproject.net.HostLocation;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.host.HostService;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Local view of the host locations known to the host service.
+ * <p>
+ * Locations are keyed by MAC address packed into a long and kept up to date
+ * from host events, so resolving the destination of a table miss costs one map
+ * lookup. The first hop towards another device is taken from the flood tree
+ * once and cached until the topology changes: packets to a host follow the
+ * same links as its flooded packets, so every device keeps learning the host
+ * on the same port instead of flip-flopping between a shortest path port and
+ * a tree port.
+ */
+public final class HostLocator {
+
+    private final HostService hostService;
+    private final FloodTree floodTree;
+
+    private final Map<Long, HostLocation> locations = Maps.newConcurrentMap();
+    // Output port towards a destination device, by source device.
+    private final Map<DeviceId, Map<DeviceId, PortNumber>> nextHops = Maps.newConcurrentMap();
+    private final LongAdder floodsAvoided = new LongAdder();
+
+    /**
+     * Creates a locator fed by the given services.
+     *
+     * @param hostService host service
+     * @param floodTree flood tree the first hops are taken from
+     */
+    public HostLocator(HostService hostService, FloodTree floodTree) {
+        this.hostService = hostService;
+        this.floodTree = floodTree;
+    }
+
+    /**
+     * Loads the hosts currently known to the host service.
+     */
+    public void warmUp() {
+        hostService.getHosts().forEach(this::update);
+    }
+
+    /**
+     * Records the location of a host.
+     *
+     * @param host host
+     */
+    public void update(Host host) {
+        locations.put(host.mac().toLong(), host.location());
+    }
+
+    /**
+     * Forgets a host unless it was seen elsewhere since.
+     *
+     * @param host host
+     */
+    public void remove(Host host) {
+        locations.remove(host.mac().toLong(), host.location());
+    }
+
+    /**
+     * Forgets the cached first hops, after the topology changed.
+     */
+    public void topologyChanged() {
+        nextHops.clear();
+    }
+
+    /**
+     * Returns the port a device should send a packet to a host on.
+     *
+     * @param mac destination MAC address
+     * @param from device and port the packet was received on
+     * @return output port or null if the host is unknown or unreachable
+     */
+    public PortNumber outPort(MacAddress mac, ConnectPoint from) {
+        HostLocation location = locations.get(mac.toLong());
+        if (location == null) {
+            return null;
+        }
+        PortNumber port;
+        if (location.deviceId().equals(from.deviceId())) {
+            port = location.port();
+        } else {
+            port = nextHops.computeIfAbsent(from.deviceId(), id -> Maps.newConcurrentMap())
+                .computeIfAbsent(location.deviceId(), dst -> firstHop(from.deviceId(), dst));
+        }
+        if (port == null || port.equals(PortNumber.P0) || port.equals(from.port())) {
+            return null;
+        }
+        floodsAvoided.increment();
+        return port;
+    }
+
+    // Returns P0 when there is no path, since the cache cannot hold null.
+    private PortNumber firstHop(DeviceId src, DeviceId dst) {
+        PortNumber port = floodTree.firstHop(src, dst);
+        return port != null ? port : PortNumber.P0;
+    }
+
+    public int size() {
+        return locations.size();
+    }
+
+    public long floodsAvoided() {
+        return floodsAvoided.sum();
+    }
+}
@@ -30,15 +30,32 @@ import org.onosproject.core.CoreService;
 import org.onosproject.net.ConnectPoint;
 import org.onosproject.net.DeviceId;
 import org.onosproject.net.PortNumber;
+import org.onosproject.net.edge.EdgePortEvent;
+import org.onosproject.net.edge.EdgePortListener;
+import org.onosproject.net.edge.EdgePortService;
 import org.onosproject.net.flow.DefaultFlowRule;
 import org.onosproject.net.flow.DefaultTrafficSelector;
 import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.host.HostEvent;
+import org.onosproject.net.host.HostListener;
+import org.onosproject.net.host.HostService;
 import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperations;
 import org.onosproject.net.flow.FlowRuleService;
+import org.onosproject.net.flow.TrafficSelector;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.flow.criteria.Criterion;
+import org.onosproject.net.flow.criteria.EthCriterion;
+import org.onosproject.net.packet.DefaultOutboundPacket;
 import org.onosproject.net.packet.PacketContext;
 import org.onosproject.net.packet.PacketPriority;
 import org.onosproject.net.packet.PacketProcessor;
 import org.onosproject.net.packet.PacketService;
+import org.onosproject.net.topology.TopologyEvent;
+import org.onosproject.net.topology.TopologyListener;
+import org.onosproject.net.topology.TopologyService;
+import org.onosproject.store.service.StorageService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -48,8 +65,19 @@ import java.util.Dictionary;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import static org.onlab.util.Tools.get;
+import static org.onlab.util.Tools.getIntegerProperty;
+import static org.onlab.util.Tools.groupedThreads;
+import static org.onlab.util.Tools.isPropertyEnabled;
 
 
 /**
@@ -59,6 +87,15 @@ import static org.onlab.util.Tools.get;
            service = {LearningBridge.class},
            property = {
                "someProperty=Some Default String Value",
+               "macAgingTime:Integer=300",
+               "macTableSize:Integer=65536",
+               "matchDstOnly:Boolean=false",
+               "flowBatchSize:Integer=64",
+               "flowFlushInterval:Integer=10",
+               "processingThreads:Integer=0",
+               "floodOnTree:Boolean=true",
+               "hostLookup:Boolean=true",
+               "distributedMacTable:Boolean=false",
            })
 public class LearningBridge {
 
@@ -77,17 +114,84 @@ public class LearningBridge {
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     protected PacketService packetService;
 
-    protected Map<DeviceId, Map<MacAddress, PortNumber>> macTables = Maps.newConcurrentMap();
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected TopologyService topologyService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected EdgePortService edgePortService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected HostService hostService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected StorageService storageService;
+
+    protected Map<DeviceId, MacTable> macTables = Maps.newConcurrentMap();
+    private final Map<DeviceId, LongAdder> stationMoves = Maps.newConcurrentMap();
     private ApplicationId appId;
     private PacketProcessor processor;
+    private final TopologyListener topologyListener = new InternalTopologyListener();
+    private final EdgePortListener edgePortListener = new InternalEdgePortListener();
+    private final HostListener hostListener = new InternalHostListener();
 
     // Useless property, hope it can make onos stop complaining.
     private String someProperty;
 
+    /** Seconds a MAC address stays learned without traffic from it, 0 to never age. */
+    private int macAgingTime = 300;
+
+    /** Maximum number of MAC addresses learned per device. */
+    private int macTableSize = 65536;
+
+    /** Install one rule per destination MAC instead of one per source and destination pair. */
+    private boolean matchDstOnly = false;
+
+    /** Number of pending rules of a device applied as soon as they are queued. */
+    private int flowBatchSize = 64;
+
+    /** Milliseconds a forwarding rule stays queued at most before it is applied. */
+    private int flowFlushInterval = 10;
+
+    /** Number of threads processing packets, 0 to process them on the dispatcher thread. */
+    private int processingThreads = 0;
+
+    /** Flood on a spanning tree of the topology instead of on all ports. */
+    private boolean floodOnTree = true;
+
+    private FlowRuleInstaller flowRuleInstaller;
+    private FloodTree floodTree;
+
+    /** Send packets to unlearned hosts the host service knows instead of flooding them. */
+    private boolean hostLookup = true;
+
+    private HostLocator hostLocator;
+
+    /** Share the learned MAC addresses with the other instances of the cluster. */
+    private boolean distributedMacTable = false;
+
+    private volatile DistributedMacStore macStore;
+
+    // Single thread executors; the packets of a device always go to the same one.
+    private volatile ExecutorService[] workers;
+
+    private ScheduledExecutorService agingExecutor;
+    private ScheduledFuture<?> agingTask;
+
     @Activate
-    protected void activate() {
+    protected void activate(ComponentContext context) {
         cfgService.registerProperties(getClass());
         appId = coreService.getAppId("nctu.winlab.bridge"); //equal to the name shown in pom.xml file
+        agingExecutor = Executors.newSingleThreadScheduledExecutor(groupedThreads("onos/bridge", "mac-aging", log));
+        flowRuleInstaller = new FlowRuleInstaller(flowRuleService, flowFlushInterval, flowBatchSize);
+        floodTree = new FloodTree(topologyService, edgePortService);
+        hostLocator = new HostLocator(hostService, floodTree);
+        modified(context);
+
+        topologyService.addListener(topologyListener);
+        edgePortService.addListener(edgePortListener);
+        floodTree.update(topologyService.currentTopology());
+        hostService.addListener(hostListener);
+        hostLocator.warmUp();
 
         processor = new BridgePacketProcessor();
         packetService.addProcessor(processor, PacketProcessor.director(3));
@@ -108,6 +212,17 @@ public class LearningBridge {
     protected void deactivate() {
         cfgService.unregisterProperties(getClass(), false);
         packetService.removeProcessor(processor);
+        topologyService.removeListener(topologyListener);
+        edgePortService.removeListener(edgePortListener);
+        hostService.removeListener(hostListener);
+        if (macStore != null) {
+            macStore.deactivate();
+            macStore = null;
+        }
+        stopWorkers(workers);
+        workers = null;
+        flowRuleInstaller.shutdown();
+        agingExecutor.shutdownNow();
         log.info("Stopped");
     }
 
@@ -116,46 +231,281 @@ public class LearningBridge {
         Dictionary<?, ?> properties = context != null ? context.getProperties() : new Properties();
         if (context != null) {
             someProperty = get(properties, "someProperty");
+            macAgingTime = getIntegerProperty(properties, "macAgingTime", macAgingTime);
+            macTableSize = getIntegerProperty(properties, "macTableSize", macTableSize);
+            matchDstOnly = isPropertyEnabled(properties, "matchDstOnly", matchDstOnly);
+            flowBatchSize = getIntegerProperty(properties, "flowBatchSize", flowBatchSize);
+            flowFlushInterval = getIntegerProperty(properties, "flowFlushInterval", flowFlushInterval);
+            processingThreads = getIntegerProperty(properties, "processingThreads", processingThreads);
+            floodOnTree = isPropertyEnabled(properties, "floodOnTree", floodOnTree);
+            hostLookup = isPropertyEnabled(properties, "hostLookup", hostLookup);
+            distributedMacTable = isPropertyEnabled(properties, "distributedMacTable", distributedMacTable);
+        }
+        configureMacStore();
+        configureWorkers();
+        if (flowRuleInstaller != null) {
+            flowRuleInstaller.configure(flowFlushInterval, flowBatchSize);
         }
+        macTables.values().forEach(table -> table.setMaxSize(macTableSize));
+        scheduleAging();
         log.info("Reconfigured");
     }
 
+    private void configureMacStore() {
+        if (distributedMacTable && macStore == null) {
+            DistributedMacStore store =
+                new DistributedMacStore(DistributedMacStore.buildMap(storageService), this::macTable);
+            store.activate();
+            macStore = store;
+        } else if (!distributedMacTable && macStore != null) {
+            macStore.deactivate();
+            macStore = null;
+        }
+    }
+
+    private MacTable macTable(DeviceId id) {
+        MacTable macTable = macTables.get(id);
+        return macTable != null ? macTable : macTables.computeIfAbsent(id, k -> new MacTable(macTableSize));
+    }
+
+    /**
+     * Starts the packet processing threads when their number changes. Packets
+     * queued to the previous threads are still processed, so the order of a
+     * device's packets is only lost while the configuration changes.
+     */
+    private void configureWorkers() {
+        ExecutorService[] current = workers;
+        int count = Math.max(0, processingThreads);
+        if ((current == null ? 0 : current.length) == count) {
+            return;
+        }
+        ExecutorService[] started = null;
+        if (count > 0) {
+            started = new ExecutorService[count];
+            for (int i = 0; i < count; i++) {
+                started[i] = Executors.newSingleThreadExecutor(
+                    groupedThreads("onos/bridge", "packet-worker-" + i, log));
+            }
+        }
+        workers = started;
+        if (current != null) {
+            for (ExecutorService worker : current) {
+                worker.shutdown();
+            }
+        }
+    }
+
+    private void stopWorkers(ExecutorService[] stopped) {
+        if (stopped == null) {
+            return;
+        }
+        for (ExecutorService worker : stopped) {
+            worker.shutdown();
+        }
+        try {
+            for (ExecutorService worker : stopped) {
+                worker.awaitTermination(1, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * (Re)schedules the periodic sweep dropping idle MAC addresses from all tables.
+     * A sweep runs a few times per aging period, so an entry outlives its aging
+     * time by at most a quarter of it.
+     */
+    private void scheduleAging() {
+        if (agingTask != null) {
+            agingTask.cancel(false);
+            agingTask = null;
+        }
+        if (macAgingTime <= 0 || agingExecutor == null) {
+            return;
+        }
+        long interval = Math.max(1000L, Math.min(60000L, macAgingTime * 1000L / 4));
+        agingTask = agingExecutor.scheduleWithFixedDelay(this::sweepMacTables, interval, interval,
+                                                         TimeUnit.MILLISECONDS);
+    }
+
+    private void sweepMacTables() {
+        long expiry = System.currentTimeMillis() - macAgingTime * 1000L;
+        DistributedMacStore store = macStore;
+        macTables.forEach((id, table) -> {
+            int expired = store == null ? table.sweep(expiry) : table.sweep(expiry, mac -> store.expired(id, mac));
+            if (expired > 0) {
+                log.debug("Aged out {} MAC addresses on `{}`.", expired, id);
+            }
+        });
+    }
+
+    /**
+     * Returns the number of station moves seen on each device.
+     *
+     * @return move count by device
+     */
+    public Map<DeviceId, Long> stationMoves() {
+        Map<DeviceId, Long> moves = Maps.newHashMap();
+        stationMoves.forEach((id, count) -> moves.put(id, count.sum()));
+        return moves;
+    }
+
+    /**
+     * Returns the installer queueing the forwarding rules.
+     *
+     * @return flow rule installer
+     */
+    public FlowRuleInstaller flowRuleInstaller() {
+        return flowRuleInstaller;
+    }
+
+    /**
+     * Returns the number of packets sent to a host known to the host service
+     * instead of being flooded.
+     *
+     * @return floods avoided
+     */
+    public long floodsAvoided() {
+        return hostLocator.floodsAvoided();
+    }
+
+    /**
+     * Handles a MAC address seen on another port than the one it was learned on.
+     * The table already points at the new port; the rules still forwarding to
+     * the old one are dropped from the installer queue and removed from the
+     * device in a single batch.
+     */
+    private void stationMoved(MacAddress mac, DeviceId deviceId) {
+        stationMoves.computeIfAbsent(deviceId, id -> new LongAdder()).increment();
+
+        int stale = flowRuleInstaller.discard(deviceId, rule -> forwardsTo(rule, mac));
+        FlowRuleOperations.Builder operations = FlowRuleOperations.builder();
+        int removed = 0;
+        for (FlowEntry entry : flowRuleService.getFlowEntries(deviceId)) {
+            if (entry.appId() == appId.id() && forwardsTo(entry, mac)) {
+                operations.remove(entry);
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            flowRuleService.apply(operations.build());
+        }
+        stale += removed;
+        log.debug("Removed {} stale rules towards `{}` on `{}`.", stale, mac, deviceId);
+    }
+
+    private class InternalTopologyListener implements TopologyListener {
+        @Override
+        public void event(TopologyEvent event) {
+            floodTree.update(event.subject());
+            hostLocator.topologyChanged();
+            log.debug("Flood tree spans {} links.", floodTree.size());
+        }
+    }
+
+    private class InternalEdgePortListener implements EdgePortListener {
+        @Override
+        public void event(EdgePortEvent event) {
+            floodTree.invalidate(event.subject().deviceId());
+        }
+    }
+
+    private class InternalHostListener implements HostListener {
+        @Override
+        public void event(HostEvent event) {
+            switch (event.type()) {
+            case HOST_ADDED:
+            case HOST_UPDATED:
+            case HOST_MOVED:
+                hostLocator.update(event.subject());
+                break;
+            case HOST_REMOVED:
+                hostLocator.remove(event.subject());
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    private static boolean forwardsTo(FlowRule rule, MacAddress mac) {
+        Criterion criterion = rule.selector().getCriterion(Criterion.Type.ETH_DST);
+        return criterion instanceof EthCriterion && ((EthCriterion) criterion).mac().equals(mac);
+    }
+
     private class BridgePacketProcessor implements PacketProcessor {
         @Override
         public void process(PacketContext context) {
-            initTableEntry(context.inPacket().receivedFrom());
-            short ethType = context.inPacket().parsed().getEtherType();
+            Ethernet eth = context.inPacket().parsed();
+            if (eth == null) {
+                return;
+            }
+            short ethType = eth.getEtherType();
             if (ethType != Ethernet.TYPE_IPV4 && ethType != Ethernet.TYPE_ARP) {
                 return;
             }
 
             ConnectPoint connectPoint = context.inPacket().receivedFrom();
-            Map<MacAddress, PortNumber> macTable = macTables.get(connectPoint.deviceId());
-            MacAddress srcMac = context.inPacket().parsed().getSourceMAC();
-            MacAddress dstMac = context.inPacket().parsed().getDestinationMAC();
-            if (!macTable.containsKey(srcMac)) {
+            MacAddress srcMac = eth.getSourceMAC();
+            MacAddress dstMac = eth.getDestinationMAC();
+            ExecutorService[] shards = workers;
+            if (shards == null) {
+                forward(context, connectPoint, srcMac, dstMac, false);
+                return;
+            }
+            // The packet is claimed before it leaves the processor chain, so
+            // later processors skip it while the worker still handles it.
+            context.block();
+            int shard = (connectPoint.deviceId().hashCode() & Integer.MAX_VALUE) % shards.length;
+            try {
+                shards[shard].execute(() -> forward(context, connectPoint, srcMac, dstMac, true));
+            } catch (RejectedExecutionException e) {
+                // The worker was replaced by a reconfiguration.
+                forward(context, connectPoint, srcMac, dstMac, true);
+            }
+        }
+
+        /**
+         * Learns the source of a packet and forwards it, on the thread the
+         * packets of its device are processed on. A blocked context can no
+         * longer be sent, so a deferred packet is emitted as a new outbound
+         * packet instead.
+         */
+        private void forward(PacketContext context, ConnectPoint connectPoint,
+                             MacAddress srcMac, MacAddress dstMac, boolean deferred) {
+            MacTable macTable = macTable(connectPoint.deviceId());
+            long previousPort = macTable.learn(srcMac.toLong(), connectPoint.port().toLong(),
+                                               System.currentTimeMillis());
+            if (previousPort == MacTable.NO_PORT) {
                 logEntryAdded(srcMac, connectPoint.deviceId(), connectPoint.port());
-                macTable.put(srcMac, connectPoint.port());
+            } else if (previousPort != connectPoint.port().toLong()) {
+                logEntryMoved(srcMac, connectPoint.deviceId(), previousPort, connectPoint.port());
+                stationMoved(srcMac, connectPoint.deviceId());
+            }
+            DistributedMacStore store = macStore;
+            if (store != null) {
+                store.learned(connectPoint.deviceId(), srcMac.toLong(), connectPoint.port().toLong());
             }
 
-            PortNumber outPort = macTable.get(dstMac);
-            if (outPort == null) {
-                // We didn't found the out port, flood the packet.
-                logEntryMissed(dstMac, connectPoint.deviceId());
-                context.treatmentBuilder().setOutput(PortNumber.FLOOD);
-                context.send();
-                return;
+            long learnedPort = macTable.get(dstMac.toLong());
+            PortNumber outPort;
+            if (learnedPort != MacTable.NO_PORT) {
+                outPort = PortNumber.portNumber(learnedPort);
+            } else {
+                outPort = hostLookup ? hostLocator.outPort(dstMac, connectPoint) : null;
+                if (outPort == null) {
+                    // We didn't found the out port, flood the packet.
+                    logEntryMissed(dstMac, connectPoint.deviceId());
+                    flood(context, connectPoint, deferred);
+                    return;
+                }
             }
 
             // We send the packet to specific port
             logEntryMatched(dstMac, connectPoint.deviceId());
-            context.treatmentBuilder().setOutput(outPort);
             FlowRule rule = DefaultFlowRule.builder()
-                .withSelector(
-                    DefaultTrafficSelector.builder()
-                    .matchEthSrc(srcMac)
-                    .matchEthDst(dstMac)
-                    .build())
+                .withSelector(forwardingSelector(srcMac, dstMac))
                 .withTreatment(DefaultTrafficTreatment.builder().setOutput(outPort).build())
                 .forDevice(connectPoint.deviceId())
                 .withPriority(30)
@@ -163,11 +513,67 @@ public class LearningBridge {
                 .fromApp(appId)
                 .build();
 
-            flowRuleService.applyFlowRules(rule);
-            context.send();
+            flowRuleInstaller.install(rule);
+            send(context, treatment(context, deferred).setOutput(outPort), deferred);
             return;
         }
 
+        /**
+         * Floods a packet on the tree and edge ports of its device except the
+         * one it came from. A packet received on a port off the tree can only
+         * be a copy of a packet already flooded, so it is dropped.
+         */
+        private void flood(PacketContext context, ConnectPoint connectPoint, boolean deferred) {
+            TrafficTreatment.Builder treatment = treatment(context, deferred);
+            if (!floodOnTree) {
+                send(context, treatment.setOutput(PortNumber.FLOOD), deferred);
+                return;
+            }
+            Set<PortNumber> ports = floodTree.floodPorts(connectPoint.deviceId());
+            if (!ports.contains(connectPoint.port())) {
+                log.debug("Dropped a packet received off the flood tree on `{}`.", connectPoint);
+                return;
+            }
+            for (PortNumber port : ports) {
+                if (!port.equals(connectPoint.port())) {
+                    treatment.setOutput(port);
+                }
+            }
+            send(context, treatment, deferred);
+        }
+
+        private TrafficTreatment.Builder treatment(PacketContext context, boolean deferred) {
+            return deferred ? DefaultTrafficTreatment.builder() : context.treatmentBuilder();
+        }
+
+        private void send(PacketContext context, TrafficTreatment.Builder treatment, boolean deferred) {
+            if (!deferred) {
+                context.send();
+                return;
+            }
+            packetService.emit(new DefaultOutboundPacket(context.inPacket().receivedFrom().deviceId(),
+                                                         treatment.build(), context.inPacket().unparsed()));
+        }
+
+        /**
+         * Builds the match of a forwarding rule. In destination-only mode the
+         * rule only carries IPv4, so ARP keeps reaching the controller and
+         * every host is learned from the ARP exchange preceding its unicast
+         * traffic without punting each new pair of hosts.
+         */
+        private TrafficSelector forwardingSelector(MacAddress srcMac, MacAddress dstMac) {
+            if (matchDstOnly) {
+                return DefaultTrafficSelector.builder()
+                    .matchEthType(Ethernet.TYPE_IPV4)
+                    .matchEthDst(dstMac)
+                    .build();
+            }
+            return DefaultTrafficSelector.builder()
+                .matchEthSrc(srcMac)
+                .matchEthDst(dstMac)
+                .build();
+        }
+
         private void logEntryAdded(MacAddress mac, DeviceId id, PortNumber port) {
             log.info(
                 String.format("Add an entry to the port table of `%s`. MAC address: `%s` => Port: `%s`.",
@@ -192,8 +598,14 @@ public class LearningBridge {
             );
         }
 
-        private void initTableEntry(ConnectPoint cp) {
-            macTables.putIfAbsent(cp.deviceId(), Maps.newConcurrentMap());
+        private void logEntryMoved(MacAddress mac, DeviceId id, long fromPort, PortNumber toPort) {
+            log.info(
+                String.format("MAC address `%s` moved on `%s` from port `%d` to `%s`.",
+                mac.toString(),
+                id.toString(),
+                fromPort,
+                toPort.toString())
+            );
         }
 
     }
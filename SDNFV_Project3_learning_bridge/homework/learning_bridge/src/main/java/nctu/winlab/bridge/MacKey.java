@@ -0,0 +1,106 @@
+/*
+ * Copyright 2022-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.winlab.bridge;
+
+import java.util.Objects;
+
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.DeviceId;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.google.common.base.MoreObjects;
+
+/**
+ * Key of a learned MAC address in the cluster-wide MAC table.
+ */
+public final class MacKey {
+
+    private final DeviceId deviceId;
+    private final long mac;
+
+    /**
+     * Creates a key.
+     *
+     * @param deviceId device the address was learned on
+     * @param mac MAC address packed into a long
+     */
+    public MacKey(DeviceId deviceId, long mac) {
+        this.deviceId = deviceId;
+        this.mac = mac;
+    }
+
+    public DeviceId deviceId() {
+        return deviceId;
+    }
+
+    public long mac() {
+        return mac;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(deviceId, mac);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof MacKey)) {
+            return false;
+        }
+        MacKey that = (MacKey) obj;
+        return mac == that.mac && deviceId.equals(that.deviceId);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+            .add("deviceId", deviceId)
+            .add("mac", MacAddress.valueOf(mac))
+            .toString();
+    }
+
+    /**
+     * Writes a key as the device URI and the six address bytes, instead of the
+     * generic field by field encoding.
+     */
+    public static final class KeySerializer extends Serializer<MacKey> {
+
+        public KeySerializer() {
+            super(false, true);
+        }
+
+        @Override
+        public void write(Kryo kryo, Output output, MacKey key) {
+            output.writeString(key.deviceId.toString());
+            output.writeShort((int) (key.mac >>> 32));
+            output.writeInt((int) key.mac);
+        }
+
+        @Override
+        public MacKey read(Kryo kryo, Input input, Class<MacKey> type) {
+            DeviceId deviceId = DeviceId.deviceId(input.readString());
+            long high = input.readShortUnsigned();
+            long low = input.readInt() & 0xFFFFFFFFL;
+            return new MacKey(deviceId, high << 32 | low);
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2022-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.winlab.bridge;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongConsumer;
+
+/**
+ * MAC address table of one device.
+ * <p>
+ * MAC addresses are packed into the low 48 bits of a long and stored with their
+ * port number and last seen time in an open addressing table, so an entry costs
+ * three array slots and a lookup allocates nothing. Reads and refreshes of a
+ * known entry are lock free; other writes are serialized and a rebuilt table is
+ * published through a volatile field.
+ * <p>
+ * Entries idle for longer than the aging time are dropped by {@link #sweep},
+ * which is meant to be run periodically for all tables at once. When the table
+ * is full, learning a new address evicts the least recently seen of a few
+ * sampled entries.
+ */
+public final class MacTable {
+
+    /** Returned by lookups when the MAC address is not learned. */
+    public static final long NO_PORT = -1L;
+
+    private static final long EMPTY = -1L;
+    private static final long REMOVED = -2L;
+    private static final int MIN_CAPACITY = 16;
+    private static final int EVICTION_SAMPLES = 8;
+
+    private volatile Slots slots;
+    private int size;
+    private int removed;
+    private int maxSize;
+
+    // Keys, ports and last seen times of one table generation. A port is
+    // written before its key, so a reader seeing the key always sees the port.
+    private static final class Slots {
+        private final AtomicLongArray keys;
+        private final AtomicLongArray ports;
+        private final AtomicLongArray lastSeen;
+        private final int mask;
+
+        private Slots(int capacity) {
+            keys = new AtomicLongArray(capacity);
+            ports = new AtomicLongArray(capacity);
+            lastSeen = new AtomicLongArray(capacity);
+            mask = capacity - 1;
+            for (int i = 0; i < capacity; i++) {
+                keys.lazySet(i, EMPTY);
+            }
+        }
+
+        private int capacity() {
+            return mask + 1;
+        }
+
+        // Returns the slot holding the key, or -1.
+        private int find(long mac) {
+            for (int i = index(mac, mask); ; i = (i + 1) & mask) {
+                long key = keys.get(i);
+                if (key == mac) {
+                    return i;
+                }
+                if (key == EMPTY) {
+                    return -1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates an empty table.
+     *
+     * @param maxSize maximum number of learned addresses
+     */
+    public MacTable(int maxSize) {
+        this.maxSize = maxSize;
+        slots = new Slots(MIN_CAPACITY);
+    }
+
+    /**
+     * Returns the port a MAC address was learned on.
+     *
+     * @param mac MAC address packed into a long
+     * @return port number or {@link #NO_PORT}
+     */
+    public long get(long mac) {
+        Slots s = slots;
+        int i = s.find(mac);
+        return i < 0 ? NO_PORT : s.ports.get(i);
+    }
+
+    /**
+     * Learns a MAC address on a port, or refreshes it if it is already known
+     * on that port.
+     *
+     * @param mac MAC address packed into a long
+     * @param port port number
+     * @param nowMillis current time
+     * @return the previous port or {@link #NO_PORT}
+     */
+    public long learn(long mac, long port, long nowMillis) {
+        Slots s = slots;
+        int i = s.find(mac);
+        if (i >= 0 && s.ports.get(i) == port) {
+            s.lastSeen.lazySet(i, nowMillis);
+            return port;
+        }
+        return put(mac, port, nowMillis);
+    }
+
+    private synchronized long put(long mac, long port, long nowMillis) {
+        int i = slots.find(mac);
+        if (i >= 0) {
+            slots.lastSeen.set(i, nowMillis);
+            return slots.ports.getAndSet(i, port);
+        }
+
+        if (size >= maxSize) {
+            evictOldest();
+        }
+        if ((size + removed + 1) * 4L > slots.capacity() * 3L) {
+            rebuild(size + 1);
+        }
+
+        Slots s = slots;
+        int j = index(mac, s.mask);
+        while (s.keys.get(j) >= 0) {
+            j = (j + 1) & s.mask;
+        }
+        if (s.keys.get(j) == REMOVED) {
+            removed--;
+        }
+        s.ports.set(j, port);
+        s.lastSeen.set(j, nowMillis);
+        s.keys.set(j, mac);
+        size++;
+        return NO_PORT;
+    }
+
+    /**
+     * Forgets a MAC address.
+     *
+     * @param mac MAC address packed into a long
+     * @return the port it was learned on or {@link #NO_PORT}
+     */
+    public synchronized long remove(long mac) {
+        int i = slots.find(mac);
+        if (i < 0) {
+            return NO_PORT;
+        }
+        long port = slots.ports.get(i);
+        removeAt(i);
+        return port;
+    }
+
+    /**
+     * Drops the entries not seen since the given time.
+     *
+     * @param expiryMillis entries last seen before this time are removed
+     * @return number of removed entries
+     */
+    public int sweep(long expiryMillis) {
+        return sweep(expiryMillis, mac -> { });
+    }
+
+    /**
+     * Drops the entries not seen since the given time, reporting each of them.
+     *
+     * @param expiryMillis entries last seen before this time are removed
+     * @param expired consumer of the removed MAC addresses, called with the table locked
+     * @return number of removed entries
+     */
+    public synchronized int sweep(long expiryMillis, LongConsumer expired) {
+        Slots s = slots;
+        int count = 0;
+        for (int i = 0; i < s.capacity(); i++) {
+            long key = s.keys.get(i);
+            if (key >= 0 && s.lastSeen.get(i) < expiryMillis) {
+                removeAt(i);
+                expired.accept(key);
+                count++;
+            }
+        }
+        if (removed > size && slots.capacity() > MIN_CAPACITY) {
+            rebuild(size);
+        }
+        return count;
+    }
+
+    /**
+     * Changes the maximum number of learned addresses, evicting entries if needed.
+     *
+     * @param maxSize maximum number of learned addresses
+     */
+    public synchronized void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        while (size > maxSize) {
+            evictOldest();
+        }
+    }
+
+    /**
+     * Returns the number of learned MAC addresses.
+     *
+     * @return table size
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    // Number of slots of the current table generation.
+    int capacity() {
+        return slots.capacity();
+    }
+
+    private void removeAt(int i) {
+        // Readers probing past this slot must keep going, so it is not emptied.
+        slots.keys.set(i, REMOVED);
+        size--;
+        removed++;
+    }
+
+    // Approximates LRU by evicting the oldest of a few randomly sampled entries.
+    private void evictOldest() {
+        Slots s = slots;
+        int victim = -1;
+        int start = ThreadLocalRandom.current().nextInt(s.capacity());
+        for (int n = 0, found = 0; n < s.capacity() && found < EVICTION_SAMPLES; n++) {
+            int i = (start + n * 31) & s.mask;
+            if (s.keys.get(i) < 0) {
+                continue;
+            }
+            found++;
+            if (victim < 0 || s.lastSeen.get(i) < s.lastSeen.get(victim)) {
+                victim = i;
+            }
+        }
+        if (victim >= 0) {
+            removeAt(victim);
+        }
+    }
+
+    // Copies the live entries into a table at most half full with the expected number of entries.
+    private void rebuild(int expected) {
+        int capacity = MIN_CAPACITY;
+        while (expected * 2L > capacity) {
+            capacity *= 2;
+        }
+
+        Slots old = slots;
+        Slots rebuilt = new Slots(capacity);
+        for (int i = 0; i < old.capacity(); i++) {
+            long key = old.keys.get(i);
+            if (key < 0) {
+                continue;
+            }
+            int j = index(key, rebuilt.mask);
+            while (rebuilt.keys.get(j) != EMPTY) {
+                j = (j + 1) & rebuilt.mask;
+            }
+            rebuilt.ports.set(j, old.ports.get(i));
+            rebuilt.lastSeen.set(j, old.lastSeen.get(i));
+            rebuilt.keys.set(j, key);
+        }
+        slots = rebuilt;
+        removed = 0;
+    }
+
+    private static int index(long mac, int mask) {
+        // Spread the vendor and NIC bytes over the whole index range.
+        long h = mac * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright 2022-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.winlab.bridge;
+
+import org.onlab.osgi.ComponentContextAdapter;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.MacAddress;
+import org.onosproject.cfg.ComponentConfigAdapter;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.CoreServiceAdapter;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DefaultLink;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Host;
+import org.onosproject.net.Link;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.edge.EdgePortServiceAdapter;
+import org.onosproject.net.flow.DefaultFlowEntry;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperation;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleServiceAdapter;
+import org.onosproject.net.flow.criteria.Criterion;
+import org.onosproject.net.flow.criteria.EthCriterion;
+import org.onosproject.net.flow.criteria.EthTypeCriterion;
+import org.onosproject.net.host.HostServiceAdapter;
+import org.onosproject.net.packet.DefaultInboundPacket;
+import org.onosproject.net.packet.DefaultOutboundPacket;
+import org.onosproject.net.packet.DefaultPacketContext;
+import org.onosproject.net.packet.OutboundPacket;
+import org.onosproject.net.packet.PacketContext;
+import org.onosproject.net.packet.PacketProcessor;
+import org.onosproject.net.packet.PacketServiceAdapter;
+import org.onosproject.net.provider.ProviderId;
+import org.onosproject.net.topology.DefaultTopologyEdge;
+import org.onosproject.net.topology.DefaultTopologyGraph;
+import org.onosproject.net.topology.DefaultTopologyVertex;
+import org.onosproject.net.topology.Topology;
+import org.onosproject.net.topology.TopologyEdge;
+import org.onosproject.net.topology.TopologyGraph;
+import org.onosproject.net.topology.TopologyServiceAdapter;
+import org.onosproject.net.topology.TopologyVertex;
+
+import java.nio.ByteBuffer;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * Learning bridge wired to adapter services, driving synthetic packets
+ * through its packet processor.
+ * <p>
+ * Every device has one host per edge port, ports 1 to {@link #HOSTS}; host
+ * {@code n} has the MAC address {@code n}. {@link #send} emulates a switch by
+ * punting a frame only when no installed rule matches it.
+ */
+final class BridgeTestHarness {
+
+    static final DeviceId DEVICE = DeviceId.deviceId("of:0000000000000001");
+    static final int HOSTS = 16;
+
+    final LearningBridge component = new LearningBridge();
+    final TestPacketService packetService = new TestPacketService();
+    final TestFlowRuleService flowRuleService = new TestFlowRuleService();
+    final TestTopologyService topologyService = new TestTopologyService();
+    final TestHostService hostService = new TestHostService();
+
+    private final LongAdder sent = new LongAdder();
+    private int packetIns;
+
+    BridgeTestHarness() {
+        component.coreService = new TestCoreService();
+        component.cfgService = new ComponentConfigAdapter();
+        component.flowRuleService = flowRuleService;
+        component.packetService = packetService;
+        component.topologyService = topologyService;
+        component.edgePortService = new TestEdgePortService();
+        component.hostService = hostService;
+    }
+
+    /**
+     * Activates the bridge.
+     *
+     * @param properties alternating property names and values
+     */
+    void activate(String... properties) {
+        Dictionary<String, Object> config = new Hashtable<>();
+        for (int i = 0; i < properties.length; i += 2) {
+            config.put(properties[i], properties[i + 1]);
+        }
+        component.activate(new TestComponentContext(config));
+    }
+
+    void deactivate() {
+        component.deactivate();
+    }
+
+    static MacAddress mac(int host) {
+        return MacAddress.valueOf(host);
+    }
+
+    static Ethernet frame(MacAddress src, MacAddress dst, short ethType) {
+        Ethernet eth = new Ethernet();
+        eth.setSourceMACAddress(src);
+        eth.setDestinationMACAddress(dst);
+        eth.setEtherType(ethType);
+        return eth;
+    }
+
+    /**
+     * Returns a packet context counting its sends, for a frame received on a port.
+     *
+     * @param deviceId device the frame is received by
+     * @param port ingress port
+     * @param eth frame
+     * @return packet context
+     */
+    PacketContext context(DeviceId deviceId, int port, Ethernet eth) {
+        return new TestPacketContext(new ConnectPoint(deviceId, PortNumber.portNumber(port)), eth, sent);
+    }
+
+    /**
+     * Hands a packet to the bridge processor.
+     *
+     * @param context packet context
+     */
+    void process(PacketContext context) {
+        packetService.processor.process(context);
+    }
+
+    /**
+     * Sends a frame from a host to the switch, which punts it to the bridge
+     * unless an installed rule matches it.
+     *
+     * @param host source host
+     * @param dst destination MAC address
+     * @param ethType ether type
+     */
+    void send(int host, MacAddress dst, short ethType) {
+        Ethernet eth = frame(mac(host), dst, ethType);
+        if (flowRuleService.matches(eth)) {
+            return;
+        }
+        packetIns++;
+        process(context(DEVICE, host, eth));
+        component.flowRuleInstaller().flush();
+    }
+
+    /**
+     * Returns the packets sent back through their context or emitted.
+     *
+     * @return packets sent
+     */
+    long sent() {
+        return sent.sum() + emitted();
+    }
+
+    long emitted() {
+        return packetService.emitted.sum();
+    }
+
+    int packetIns() {
+        return packetIns;
+    }
+
+    Set<FlowRule> rules() {
+        return flowRuleService.rules;
+    }
+
+    static class TestCoreService extends CoreServiceAdapter {
+        @Override
+        public ApplicationId getAppId(String name) {
+            return new DefaultApplicationId(1, name);
+        }
+    }
+
+    static class TestComponentContext extends ComponentContextAdapter {
+        private final Dictionary<String, Object> properties;
+
+        TestComponentContext(Dictionary<String, Object> properties) {
+            this.properties = properties;
+        }
+
+        @Override
+        public Dictionary getProperties() {
+            return properties;
+        }
+    }
+
+    /**
+     * Topology made of the links added by the test, in both directions.
+     */
+    static class TestTopologyService extends TopologyServiceAdapter {
+        private final Set<TopologyEdge> edges = Sets.newHashSet();
+
+        void link(DeviceId a, int portA, DeviceId b, int portB) {
+            edges.add(edge(a, portA, b, portB));
+            edges.add(edge(b, portB, a, portA));
+        }
+
+        void unlink(DeviceId a, int portA, DeviceId b, int portB) {
+            edges.remove(edge(a, portA, b, portB));
+            edges.remove(edge(b, portB, a, portA));
+        }
+
+        private static TopologyEdge edge(DeviceId a, int portA, DeviceId b, int portB) {
+            Link link = DefaultLink.builder()
+                .providerId(new ProviderId("of", "test"))
+                .src(new ConnectPoint(a, PortNumber.portNumber(portA)))
+                .dst(new ConnectPoint(b, PortNumber.portNumber(portB)))
+                .type(Link.Type.DIRECT)
+                .state(Link.State.ACTIVE)
+                .build();
+            return new DefaultTopologyEdge(new DefaultTopologyVertex(a), new DefaultTopologyVertex(b), link);
+        }
+
+        @Override
+        public Topology currentTopology() {
+            return new TestTopology();
+        }
+
+        @Override
+        public TopologyGraph getGraph(Topology topology) {
+            Set<TopologyVertex> vertexes = Sets.newHashSet();
+            edges.forEach(edge -> {
+                vertexes.add(edge.src());
+                vertexes.add(edge.dst());
+            });
+            return new DefaultTopologyGraph(vertexes, ImmutableSet.copyOf(edges));
+        }
+    }
+
+    static class TestTopology implements Topology {
+        @Override
+        public long time() {
+            return 0;
+        }
+
+        @Override
+        public long creationTime() {
+            return 0;
+        }
+
+        @Override
+        public long computeCost() {
+            return 0;
+        }
+
+        @Override
+        public int clusterCount() {
+            return 1;
+        }
+
+        @Override
+        public int deviceCount() {
+            return 0;
+        }
+
+        @Override
+        public int linkCount() {
+            return 0;
+        }
+
+        @Override
+        public ProviderId providerId() {
+            return new ProviderId("of", "test");
+        }
+    }
+
+    /**
+     * Reports ports 1 and up, one per host, as edge ports of every device.
+     */
+    static class TestEdgePortService extends EdgePortServiceAdapter {
+        @Override
+        public Iterable<ConnectPoint> getEdgePoints(DeviceId deviceId) {
+            List<ConnectPoint> points = Lists.newArrayList();
+            for (int i = 1; i <= HOSTS; i++) {
+                points.add(new ConnectPoint(deviceId, PortNumber.portNumber(i)));
+            }
+            return points;
+        }
+    }
+
+    static class TestHostService extends HostServiceAdapter {
+        final Set<Host> hosts = Sets.newHashSet();
+
+        @Override
+        public Iterable<Host> getHosts() {
+            return hosts;
+        }
+    }
+
+    static class TestPacketService extends PacketServiceAdapter {
+        private final LongAdder emitted = new LongAdder();
+        private PacketProcessor processor;
+
+        @Override
+        public void addProcessor(PacketProcessor processor, int priority) {
+            this.processor = processor;
+        }
+
+        @Override
+        public void emit(OutboundPacket packet) {
+            emitted.increment();
+        }
+    }
+
+    /**
+     * Keeps the installed rules and emulates the switch lookup on them.
+     */
+    static class TestFlowRuleService extends FlowRuleServiceAdapter {
+        private final Set<FlowRule> rules = Sets.newConcurrentHashSet();
+
+        @Override
+        public void apply(FlowRuleOperations ops) {
+            ops.stages().forEach(stage -> stage.forEach(op -> {
+                if (op.type() == FlowRuleOperation.Type.REMOVE) {
+                    rules.removeIf(rule -> rule.id().equals(op.rule().id()));
+                } else {
+                    rules.add(op.rule());
+                }
+            }));
+        }
+
+        @Override
+        public Iterable<FlowEntry> getFlowEntries(DeviceId deviceId) {
+            return rules.stream()
+                .filter(rule -> rule.deviceId().equals(deviceId))
+                .<FlowEntry>map(DefaultFlowEntry::new)
+                .collect(Collectors.toList());
+        }
+
+        boolean matches(Ethernet eth) {
+            return rules.stream().anyMatch(rule -> rule.selector().criteria().stream().allMatch(c -> {
+                if (c.type() == Criterion.Type.ETH_SRC) {
+                    return ((EthCriterion) c).mac().equals(eth.getSourceMAC());
+                }
+                if (c.type() == Criterion.Type.ETH_DST) {
+                    return ((EthCriterion) c).mac().equals(eth.getDestinationMAC());
+                }
+                if (c.type() == Criterion.Type.ETH_TYPE) {
+                    return ((EthTypeCriterion) c).ethType().toShort() == eth.getEtherType();
+                }
+                return false;
+            }));
+        }
+    }
+
+    private static class TestPacketContext extends DefaultPacketContext {
+        private final LongAdder sent;
+
+        TestPacketContext(ConnectPoint cp, Ethernet eth, LongAdder sent) {
+            super(System.currentTimeMillis(),
+                  new DefaultInboundPacket(cp, eth, ByteBuffer.allocate(0)),
+                  new DefaultOutboundPacket(cp.deviceId(), null, ByteBuffer.allocate(0)),
+                  false);
+            this.sent = sent;
+        }
+
+        @Override
+        public void send() {
+            sent.increment();
+        }
+    }
+}
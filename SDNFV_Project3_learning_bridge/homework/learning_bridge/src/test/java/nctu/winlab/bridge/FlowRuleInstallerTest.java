@@ -0,0 +1,150 @@
+/*
+ * Copyright 2022-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.winlab.bridge;
+
+import org.junit.After;
+import org.junit.Test;
+import org.onlab.packet.MacAddress;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultFlowRule;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleServiceAdapter;
+
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests of the coalescing installer of forwarding rules.
+ */
+public class FlowRuleInstallerTest {
+
+    private static final ApplicationId APP_ID = new DefaultApplicationId(1, "nctu.winlab.bridge");
+    private static final DeviceId S1 = DeviceId.deviceId("of:0000000000000001");
+    private static final DeviceId S2 = DeviceId.deviceId("of:0000000000000002");
+
+    private final TestFlowRuleService flowRuleService = new TestFlowRuleService();
+    private FlowRuleInstaller installer;
+
+    @After
+    public void tearDown() {
+        installer.shutdown();
+    }
+
+    private static FlowRule rule(DeviceId deviceId, int host) {
+        return DefaultFlowRule.builder()
+            .withSelector(DefaultTrafficSelector.builder().matchEthDst(MacAddress.valueOf(host)).build())
+            .withTreatment(DefaultTrafficTreatment.builder().setOutput(PortNumber.portNumber(host)).build())
+            .forDevice(deviceId)
+            .withPriority(30)
+            .makeTemporary(30)
+            .fromApp(APP_ID)
+            .build();
+    }
+
+    private void awaitRules(int rules) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (flowRuleService.rules() < rules && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Checks a rule identical to a pending one is dropped and the pending
+     * rules of a device are applied as one batch.
+     */
+    @Test
+    public void deduplicates() {
+        installer = new FlowRuleInstaller(flowRuleService, 60000, 100);
+        for (int n = 0; n < 3; n++) {
+            installer.install(rule(S1, 1));
+        }
+        installer.install(rule(S1, 2));
+        assertEquals(2, installer.deduplicated());
+
+        installer.flush();
+        assertEquals(Lists.newArrayList(2), flowRuleService.batches);
+        assertEquals(1, installer.batchSizes().count());
+        assertEquals(2, installer.batchSizes().max());
+        assertEquals(1, installer.flushLatency().count());
+    }
+
+    /**
+     * Checks every device gets its own batch and discarded rules are not applied.
+     */
+    @Test
+    public void batchesPerDevice() {
+        installer = new FlowRuleInstaller(flowRuleService, 60000, 100);
+        installer.install(rule(S1, 1));
+        installer.install(rule(S1, 2));
+        installer.install(rule(S2, 1));
+        assertEquals(1, installer.discard(S1, pending -> pending.equals(rule(S1, 2))));
+        assertEquals(0, installer.discard(DeviceId.deviceId("of:0000000000000003"), rule -> true));
+
+        installer.flush();
+        assertEquals(2, flowRuleService.batches.size());
+        assertEquals(2, flowRuleService.rules());
+    }
+
+    /**
+     * Checks a full batch is applied without waiting for the flush interval.
+     */
+    @Test
+    public void fullBatchFlushesEarly() throws InterruptedException {
+        installer = new FlowRuleInstaller(flowRuleService, 60000, 4);
+        for (int host = 1; host <= 4; host++) {
+            installer.install(rule(S1, host));
+        }
+        awaitRules(4);
+        assertEquals(Lists.newArrayList(4), flowRuleService.batches);
+    }
+
+    /**
+     * Checks a partial batch is applied once the flush interval elapsed.
+     */
+    @Test
+    public void flushesAtDeadline() throws InterruptedException {
+        installer = new FlowRuleInstaller(flowRuleService, 20, 100);
+        installer.install(rule(S1, 1));
+        awaitRules(1);
+        assertEquals(Lists.newArrayList(1), flowRuleService.batches);
+    }
+
+    /**
+     * Records the number of rules of every applied batch.
+     */
+    private static class TestFlowRuleService extends FlowRuleServiceAdapter {
+        private final List<Integer> batches = Lists.newCopyOnWriteArrayList();
+
+        @Override
+        public void apply(FlowRuleOperations ops) {
+            batches.add(ops.stages().stream().mapToInt(Set::size).sum());
+        }
+
+        int rules() {
+            return batches.stream().mapToInt(Integer::intValue).sum();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2022-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.winlab.bridge;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.packet.PacketContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+import static nctu.winlab.bridge.BridgeTestHarness.DEVICE;
+import static nctu.winlab.bridge.BridgeTestHarness.HOSTS;
+import static nctu.winlab.bridge.BridgeTestHarness.frame;
+import static nctu.winlab.bridge.BridgeTestHarness.mac;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Packet rate and allocations of the bridge on its learn, hit and flood paths.
+ * <p>
+ * Packets are processed inline on the test thread, so its allocation counter
+ * covers the whole packet path. Contexts are built in batches outside the
+ * measured sections. The number of packets per path defaults to 100000 and can
+ * be raised with the {@code bridge.perf.packets} system property. The tests
+ * only log their measurements and only run with {@code -Dperf=true}; the
+ * packet paths are checked by {@link LearningBridgeTest}.
+ */
+public class LearningBridgePerfTest {
+
+    private static final int PACKETS = Integer.getInteger("bridge.perf.packets", 100000);
+    private static final int BATCH = 10000;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private BridgeTestHarness harness;
+
+    @Before
+    public void setUp() {
+        assumeTrue(Boolean.getBoolean("perf"));
+        harness = new BridgeTestHarness();
+        harness.activate("processingThreads", "0");
+        // Host 1 is learned, so it can be the known destination.
+        harness.process(harness.context(DEVICE, 1, frame(mac(1), MacAddress.BROADCAST, Ethernet.TYPE_ARP)));
+    }
+
+    @After
+    public void tearDown() {
+        if (harness != null) {
+            harness.deactivate();
+        }
+    }
+
+    /**
+     * Every packet comes from a new source towards a learned host.
+     */
+    @Test
+    public void learnPath() {
+        measure("learn", n -> harness.context(DEVICE, n % HOSTS + 1,
+                                              frame(MacAddress.valueOf(0x100000L + n), mac(1), Ethernet.TYPE_IPV4)));
+    }
+
+    /**
+     * Every packet goes between two learned hosts.
+     */
+    @Test
+    public void hitPath() {
+        for (int host = 2; host <= HOSTS; host++) {
+            harness.process(harness.context(DEVICE, host, frame(mac(host), mac(1), Ethernet.TYPE_ARP)));
+        }
+        measure("hit", n -> harness.context(DEVICE, n % (HOSTS - 1) + 2,
+                                            frame(mac(n % (HOSTS - 1) + 2), mac(1), Ethernet.TYPE_IPV4)));
+    }
+
+    /**
+     * Every packet from a learned host goes to an unknown destination.
+     */
+    @Test
+    public void floodPath() {
+        measure("flood", n -> harness.context(DEVICE, 1,
+                                              frame(mac(1), MacAddress.valueOf(0x200000L + n), Ethernet.TYPE_IPV4)));
+    }
+
+    // Bytes allocated by the current thread so far, or 0 if the JVM does not count them.
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        return threads instanceof com.sun.management.ThreadMXBean
+            ? ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId())
+            : 0;
+    }
+
+    private void measure(String path, IntFunction<PacketContext> packets) {
+        long sentBefore = harness.sent();
+        long elapsed = 0;
+        long allocated = 0;
+        PacketContext[] batch = new PacketContext[BATCH];
+        for (int done = 0; done < PACKETS; done += BATCH) {
+            int size = Math.min(BATCH, PACKETS - done);
+            for (int i = 0; i < size; i++) {
+                batch[i] = packets.apply(done + i);
+            }
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < size; i++) {
+                harness.process(batch[i]);
+            }
+            elapsed += System.nanoTime() - start;
+            allocated += allocatedBytes() - bytes;
+        }
+
+        assertEquals(PACKETS, harness.sent() - sentBefore);
+        log.info("{} path: {} packets in {} ms, {} packets/s, {} bytes allocated/packet", path, PACKETS,
+                 TimeUnit.NANOSECONDS.toMillis(elapsed), PACKETS * 1000000000L / Math.max(1, elapsed),
+                 allocated / PACKETS);
+    }
+
+    /**
+     * Traffic between the hosts of several devices, processed by sharded
+     * processing threads.
+     */
+    @Test
+    public void shardedThroughput() throws InterruptedException {
+        harness.deactivate();
+        harness = new BridgeTestHarness();
+        harness.activate("processingThreads", "4");
+
+        int devices = 8;
+        PacketContext[] contexts = new PacketContext[PACKETS];
+        for (int n = 0; n < PACKETS; n++) {
+            int src = n % HOSTS + 1;
+            int dst = (n * 7) % HOSTS + 1;
+            DeviceId device = DeviceId.deviceId(String.format("of:%016x", n % devices + 1));
+            contexts[n] = harness.context(device, src, frame(mac(src), mac(dst), Ethernet.TYPE_IPV4));
+        }
+
+        long start = System.nanoTime();
+        for (PacketContext context : contexts) {
+            harness.process(context);
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (harness.sent() < PACKETS && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        assertEquals(PACKETS, harness.sent());
+        log.info("sharded: {} packets in {} ms, {} packets/s", PACKETS,
+                 TimeUnit.NANOSECONDS.toMillis(elapsed), PACKETS * 1000000000L / Math.max(1, elapsed));
+    }
+}
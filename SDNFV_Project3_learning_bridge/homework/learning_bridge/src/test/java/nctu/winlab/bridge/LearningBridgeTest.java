@@ -18,30 +18,371 @@ package nctu.winlab.bridge;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
-import org.onosproject.cfg.ComponentConfigAdapter;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.VlanId;
+import org.onlab.util.KryoNamespace;
+import org.onosproject.net.DefaultHost;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.HostId;
+import org.onosproject.net.HostLocation;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.criteria.Criterion;
+import org.onosproject.net.flow.criteria.EthCriterion;
+import org.onosproject.net.flow.instructions.Instructions.OutputInstruction;
+import org.onosproject.net.packet.PacketContext;
+import org.onosproject.net.provider.ProviderId;
+import org.onosproject.store.service.EventuallyConsistentMapAdapter;
+import org.onosproject.store.service.EventuallyConsistentMapEvent;
+import org.onosproject.store.service.EventuallyConsistentMapListener;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+
+import static nctu.winlab.bridge.BridgeTestHarness.DEVICE;
+import static nctu.winlab.bridge.BridgeTestHarness.HOSTS;
+import static nctu.winlab.bridge.BridgeTestHarness.frame;
+import static nctu.winlab.bridge.BridgeTestHarness.mac;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Set of tests of the ONOS application component.
  */
 public class LearningBridgeTest {
 
-    private LearningBridge component;
+    private BridgeTestHarness harness;
 
     @Before
     public void setUp() {
-        // component = new LearningBridge();
-        // component.cfgService = new ComponentConfigAdapter();
-        // component.activate();
+        harness = new BridgeTestHarness();
     }
 
     @After
     public void tearDown() {
-        // component.deactivate();
+        harness.deactivate();
+    }
+
+    /**
+     * Runs a full mesh workload on one switch: every host resolves every other
+     * host with ARP, then both send IPv4 to each other. Packets matching an
+     * installed rule stay in the data plane.
+     */
+    private void runFullMesh() {
+        for (int i = 1; i <= HOSTS; i++) {
+            for (int j = i + 1; j <= HOSTS; j++) {
+                harness.send(i, MacAddress.BROADCAST, Ethernet.TYPE_ARP);
+                harness.send(j, mac(i), Ethernet.TYPE_ARP);
+                harness.send(i, mac(j), Ethernet.TYPE_IPV4);
+                harness.send(j, mac(i), Ethernet.TYPE_IPV4);
+            }
+        }
+    }
+
+    /**
+     * Compares the rules and packet-ins of both forwarding modes.
+     */
+    @Test
+    public void fullMeshFlowCount() {
+        harness.activate("matchDstOnly", "false");
+        runFullMesh();
+        int perPairRules = harness.rules().size();
+        int perPairPacketIns = harness.packetIns();
+        harness.deactivate();
+
+        harness = new BridgeTestHarness();
+        harness.activate("matchDstOnly", "true");
+        runFullMesh();
+
+        assertEquals(HOSTS * (HOSTS - 1), perPairRules);
+        assertEquals(HOSTS, harness.rules().size());
+        assertTrue(harness.packetIns() < perPairPacketIns);
+    }
+
+    /**
+     * Checks a punted packet is sent on the learn, hit and flood paths alike.
+     */
+    @Test
+    public void everyPathSendsThePacket() {
+        harness.activate();
+        harness.process(harness.context(DEVICE, 1, frame(mac(1), MacAddress.BROADCAST, Ethernet.TYPE_ARP)));
+        harness.process(harness.context(DEVICE, 2, frame(mac(2), mac(1), Ethernet.TYPE_IPV4)));
+        harness.process(harness.context(DEVICE, 2, frame(mac(2), mac(1), Ethernet.TYPE_IPV4)));
+        harness.process(harness.context(DEVICE, 1, frame(mac(1), mac(HOSTS + 1), Ethernet.TYPE_IPV4)));
+        assertEquals(4, harness.sent());
+        assertEquals(0, harness.emitted());
+    }
+
+    /**
+     * Checks a packet to a host known to the host service but not learned yet
+     * is sent to the host instead of being flooded.
+     */
+    @Test
+    public void knownHostNotFlooded() {
+        MacAddress known = mac(HOSTS);
+        harness.hostService.hosts.add(
+            new DefaultHost(new ProviderId("of", "test"), HostId.hostId(known), known, VlanId.NONE,
+                            new HostLocation(DEVICE, PortNumber.portNumber(HOSTS), 0), ImmutableSet.of()));
+        harness.activate();
+
+        harness.send(1, known, Ethernet.TYPE_IPV4);
+        assertEquals(1, harness.component.floodsAvoided());
+        assertEquals(1, harness.rules().size());
+        FlowRule rule = harness.rules().iterator().next();
+        OutputInstruction output = (OutputInstruction) rule.treatment().immediate().get(0);
+        assertEquals(PortNumber.portNumber(HOSTS), output.port());
+    }
+
+    /**
+     * Checks a station move drops the queued and installed rules towards the
+     * moved address, and moves are counted on the device they happen on.
+     */
+    @Test
+    public void stationMoveRemovesRules() {
+        // Rules are only applied by the flushes of the test.
+        harness.activate("flowFlushInterval", "60000", "flowBatchSize", "1000");
+        harness.send(1, mac(2), Ethernet.TYPE_IPV4);
+        harness.send(2, mac(1), Ethernet.TYPE_IPV4);
+        harness.send(1, mac(2), Ethernet.TYPE_IPV4);
+        assertEquals(2, harness.rules().size());
+        // Queued towards host 2 but not applied yet.
+        harness.process(harness.context(DEVICE, 3, frame(mac(3), mac(2), Ethernet.TYPE_IPV4)));
+
+        // Host 2 shows up on port 4.
+        harness.process(harness.context(DEVICE, 4, frame(mac(2), mac(1), Ethernet.TYPE_IPV4)));
+        harness.component.flowRuleInstaller().flush();
+        assertEquals(1, harness.rules().size());
+        assertFalse(harness.rules().stream().anyMatch(rule -> forwardsTo(rule, mac(2))));
+        assertEquals(ImmutableMap.of(DEVICE, 1L), harness.component.stationMoves());
+
+        // Traffic from the new port is no move, a move on another device is counted there.
+        DeviceId other = DeviceId.deviceId("of:0000000000000002");
+        harness.process(harness.context(DEVICE, 4, frame(mac(2), mac(1), Ethernet.TYPE_IPV4)));
+        harness.process(harness.context(other, 5, frame(mac(5), MacAddress.BROADCAST, Ethernet.TYPE_ARP)));
+        harness.process(harness.context(other, 6, frame(mac(5), MacAddress.BROADCAST, Ethernet.TYPE_ARP)));
+        assertEquals(ImmutableMap.of(DEVICE, 1L, other, 1L), harness.component.stationMoves());
+    }
+
+    private static boolean forwardsTo(FlowRule rule, MacAddress mac) {
+        Criterion criterion = rule.selector().getCriterion(Criterion.Type.ETH_DST);
+        return criterion instanceof EthCriterion && ((EthCriterion) criterion).mac().equals(mac);
+    }
+
+    /**
+     * Checks a packet handed to a processing thread is claimed before the
+     * processor returns and emitted by the thread, not sent through its
+     * blocked context.
+     */
+    @Test
+    public void shardedPacketsEmitted() throws InterruptedException {
+        harness.activate("processingThreads", "2");
+
+        PacketContext context = harness.context(DEVICE, 1, frame(mac(1), mac(2), Ethernet.TYPE_IPV4));
+        harness.process(context);
+        assertTrue(context.isHandled());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (harness.emitted() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, harness.emitted());
+        assertEquals(1, harness.sent());
+    }
+
+    /**
+     * Checks the MAC addresses learned by one instance reach the tables of
+     * the other instances sharing the cluster-wide map, including one
+     * joining later, and that only aging on the learning instance withdraws them.
+     */
+    @Test
+    public void distributedMacTable() {
+        harness.activate();
+
+        SharedMacMap cluster = new SharedMacMap();
+        Map<DeviceId, MacTable> tablesA = Maps.newHashMap();
+        Map<DeviceId, MacTable> tablesB = Maps.newHashMap();
+        DistributedMacStore storeA = new DistributedMacStore(cluster, id -> table(tablesA, id));
+        DistributedMacStore storeB = new DistributedMacStore(cluster, id -> table(tablesB, id));
+        storeA.activate();
+        storeB.activate();
+
+        table(tablesA, DEVICE).learn(mac(1).toLong(), 1, 0);
+        storeA.learned(DEVICE, mac(1).toLong(), 1);
+        assertEquals(1, table(tablesB, DEVICE).get(mac(1).toLong()));
+
+        Map<DeviceId, MacTable> tablesC = Maps.newHashMap();
+        DistributedMacStore storeC = new DistributedMacStore(cluster, id -> table(tablesC, id));
+        storeC.activate();
+        assertEquals(1, table(tablesC, DEVICE).get(mac(1).toLong()));
+
+        // B only sees the address through the cluster, aging it out there
+        // leaves the owner and the other instances alone.
+        table(tablesB, DEVICE).sweep(Long.MAX_VALUE, mac -> storeB.expired(DEVICE, mac));
+        assertEquals(MacTable.NO_PORT, table(tablesB, DEVICE).get(mac(1).toLong()));
+        assertEquals(1, table(tablesA, DEVICE).get(mac(1).toLong()));
+        assertEquals(1, table(tablesC, DEVICE).get(mac(1).toLong()));
+        assertEquals(1, cluster.entrySet().size());
+
+        table(tablesA, DEVICE).sweep(Long.MAX_VALUE, mac -> storeA.expired(DEVICE, mac));
+        assertEquals(MacTable.NO_PORT, table(tablesB, DEVICE).get(mac(1).toLong()));
+        assertEquals(MacTable.NO_PORT, table(tablesC, DEVICE).get(mac(1).toLong()));
+
+        KryoNamespace serializer = KryoNamespace.newBuilder()
+            .register(new MacKey.KeySerializer(), MacKey.class)
+            .build();
+        MacKey key = new MacKey(DEVICE, MacAddress.valueOf("fe:dc:ba:98:76:54").toLong());
+        assertEquals(key, serializer.deserialize(serializer.serialize(key)));
+    }
+
+    /**
+     * Checks an instance refreshing an address published by another one takes
+     * it over, so the address outlives its aging on the previous owner.
+     */
+    @Test
+    public void distributedMacTakeover() {
+        SharedMacMap cluster = new SharedMacMap();
+        Map<DeviceId, MacTable> tablesA = Maps.newHashMap();
+        Map<DeviceId, MacTable> tablesB = Maps.newHashMap();
+        Map<DeviceId, MacTable> tablesC = Maps.newHashMap();
+        DistributedMacStore storeA = new DistributedMacStore(cluster, id -> table(tablesA, id));
+        DistributedMacStore storeB = new DistributedMacStore(cluster, id -> table(tablesB, id));
+        DistributedMacStore storeC = new DistributedMacStore(cluster, id -> table(tablesC, id));
+        storeA.activate();
+        storeB.activate();
+        storeC.activate();
+
+        table(tablesA, DEVICE).learn(mac(1).toLong(), 1, 0);
+        storeA.learned(DEVICE, mac(1).toLong(), 1);
+        assertEquals(1, cluster.puts);
+
+        // B became the master of the device and sees the host on the same port.
+        storeB.learned(DEVICE, mac(1).toLong(), 1);
+        storeB.learned(DEVICE, mac(1).toLong(), 1);
+        assertEquals(2, cluster.puts);
+
+        table(tablesA, DEVICE).sweep(Long.MAX_VALUE, mac -> storeA.expired(DEVICE, mac));
+        assertEquals(1, table(tablesB, DEVICE).get(mac(1).toLong()));
+        assertEquals(1, table(tablesC, DEVICE).get(mac(1).toLong()));
+        assertEquals(1, cluster.entrySet().size());
+
+        table(tablesB, DEVICE).sweep(Long.MAX_VALUE, mac -> storeB.expired(DEVICE, mac));
+        assertEquals(MacTable.NO_PORT, table(tablesA, DEVICE).get(mac(1).toLong()));
+        assertEquals(MacTable.NO_PORT, table(tablesC, DEVICE).get(mac(1).toLong()));
+        assertTrue(cluster.entrySet().isEmpty());
     }
 
+    private static MacTable table(Map<DeviceId, MacTable> tables, DeviceId id) {
+        return tables.computeIfAbsent(id, k -> new MacTable(1024));
+    }
+
+    /**
+     * Checks the flood tree of a ring of three switches breaks the loop and
+     * moves onto the former loop link when a tree link goes down, and that
+     * first hops only take tree links.
+     */
     @Test
-    public void basics() {
+    public void floodTreeBreaksLoops() {
+        harness.activate();
+
+        DeviceId s1 = DeviceId.deviceId("of:0000000000000001");
+        DeviceId s2 = DeviceId.deviceId("of:0000000000000002");
+        DeviceId s3 = DeviceId.deviceId("of:0000000000000003");
+        BridgeTestHarness.TestTopologyService topologyService = new BridgeTestHarness.TestTopologyService();
+        topologyService.link(s1, 201, s2, 201);
+        topologyService.link(s2, 202, s3, 201);
+        topologyService.link(s3, 202, s1, 202);
+
+        FloodTree tree = new FloodTree(topologyService, new BridgeTestHarness.TestEdgePortService());
+        tree.update(topologyService.currentTopology());
+        assertEquals(2, tree.size());
+        assertEquals(4, treePorts(tree, s1, s2, s3));
+
+        topologyService.unlink(s1, 201, s2, 201);
+        tree.update(topologyService.currentTopology());
+        assertEquals(2, tree.size());
+        assertEquals(4, treePorts(tree, s1, s2, s3));
+        assertFalse(tree.floodPorts(s1).contains(PortNumber.portNumber(201)));
+        assertEquals(PortNumber.portNumber(202), tree.firstHop(s1, s2));
+
+        // The link coming back stays off the tree, first hops keep going around it.
+        topologyService.link(s1, 201, s2, 201);
+        tree.update(topologyService.currentTopology());
+        assertFalse(tree.floodPorts(s1).contains(PortNumber.portNumber(201)));
+        assertEquals(PortNumber.portNumber(202), tree.firstHop(s1, s2));
+        assertEquals(PortNumber.portNumber(202), tree.firstHop(s1, s3));
+        assertEquals(PortNumber.portNumber(201), tree.firstHop(s3, s2));
+    }
+
+    private static int treePorts(FloodTree tree, DeviceId... devices) {
+        int count = 0;
+        for (DeviceId id : devices) {
+            count += tree.floodPorts(id).size() - HOSTS;
+        }
+        return count;
+    }
+
+    /**
+     * Map shared by several stores standing for the instances of a cluster;
+     * every update is delivered to the listeners of all of them.
+     */
+    private static class SharedMacMap extends EventuallyConsistentMapAdapter<MacKey, Long> {
+        private final Map<MacKey, Long> macs = Maps.newHashMap();
+        private final List<EventuallyConsistentMapListener<MacKey, Long>> listeners = Lists.newArrayList();
+        // Events posted while listeners run are delivered after them, in order, as the cluster would.
+        private final Queue<EventuallyConsistentMapEvent<MacKey, Long>> events = Queues.newArrayDeque();
+        private int puts;
+
+        @Override
+        public void put(MacKey key, Long value) {
+            macs.put(key, value);
+            puts++;
+            notify(new EventuallyConsistentMapEvent<>("test", EventuallyConsistentMapEvent.Type.PUT, key, value));
+        }
+
+        @Override
+        public Long remove(MacKey key) {
+            Long value = macs.remove(key);
+            notify(new EventuallyConsistentMapEvent<>("test", EventuallyConsistentMapEvent.Type.REMOVE, key, value));
+            return value;
+        }
+
+        @Override
+        public Set<Map.Entry<MacKey, Long>> entrySet() {
+            return macs.entrySet();
+        }
+
+        @Override
+        public void addListener(EventuallyConsistentMapListener<MacKey, Long> listener) {
+            listeners.add(listener);
+        }
+
+        @Override
+        public void removeListener(EventuallyConsistentMapListener<MacKey, Long> listener) {
+            listeners.remove(listener);
+        }
 
+        private void notify(EventuallyConsistentMapEvent<MacKey, Long> event) {
+            boolean delivering = !events.isEmpty();
+            events.add(event);
+            if (delivering) {
+                return;
+            }
+            while (!events.isEmpty()) {
+                EventuallyConsistentMapEvent<MacKey, Long> next = events.peek();
+                listeners.forEach(listener -> listener.event(next));
+                events.remove();
+            }
+        }
     }
 
 }
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2022-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.winlab.bridge;
+
+import org.junit.Test;
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.PortNumber;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.Maps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Tests of the per-device MAC address table.
+ */
+public class MacTableTest {
+
+    private static final int[] PERF_SIZES = {10000, 100000, 1000000};
+    private static final int PERF_LOOKUPS = 5000000;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Checks learning, refreshing, moving and removing addresses.
+     */
+    @Test
+    public void learnAndRemove() {
+        MacTable table = new MacTable(1024);
+        assertEquals(MacTable.NO_PORT, table.learn(1, 1, 0));
+        assertEquals(1, table.learn(1, 1, 1));
+        assertEquals(1, table.learn(1, 2, 2));
+        assertEquals(2, table.get(1));
+        assertEquals(1, table.size());
+
+        assertEquals(2, table.remove(1));
+        assertEquals(MacTable.NO_PORT, table.remove(1));
+        assertEquals(MacTable.NO_PORT, table.get(1));
+        assertEquals(0, table.size());
+    }
+
+    /**
+     * Checks the addresses stored past a removed slot are still found and the
+     * removed slots are reused.
+     */
+    @Test
+    public void probingPastRemovedSlots() {
+        MacTable table = new MacTable(1024);
+        // Just below the load triggering a rebuild, so the probe chains are long.
+        int count = table.capacity() * 3 / 4 - 1;
+        for (int mac = 1; mac <= count; mac++) {
+            table.learn(mac, mac, 0);
+        }
+        int capacity = table.capacity();
+        for (int mac = 1; mac <= count; mac += 2) {
+            assertEquals(mac, table.remove(mac));
+        }
+        for (int mac = 1; mac <= count; mac++) {
+            assertEquals(mac % 2 == 1 ? MacTable.NO_PORT : mac, table.get(mac));
+        }
+
+        for (int mac = 1; mac <= count; mac += 2) {
+            table.learn(mac, mac, 0);
+        }
+        for (int mac = 1; mac <= count; mac++) {
+            assertEquals(mac, table.get(mac));
+        }
+        assertEquals(count, table.size());
+        assertEquals(capacity, table.capacity());
+    }
+
+    /**
+     * Checks a full table evicts the least recently seen address. With no more
+     * entries than samples, every entry is sampled and the eviction is exact.
+     */
+    @Test
+    public void evictionAtMaxSize() {
+        MacTable table = new MacTable(8);
+        for (int mac = 1; mac <= 8; mac++) {
+            table.learn(mac, mac, mac);
+        }
+        table.learn(9, 9, 100);
+        assertEquals(8, table.size());
+        assertEquals(MacTable.NO_PORT, table.get(1));
+
+        // A refresh makes an address recent again.
+        table.learn(2, 2, 200);
+        table.learn(10, 10, 300);
+        assertEquals(2, table.get(2));
+        assertEquals(MacTable.NO_PORT, table.get(3));
+
+        table.setMaxSize(4);
+        assertEquals(4, table.size());
+        for (long mac : new long[] {2, 8, 9, 10}) {
+            assertEquals(mac, table.get(mac));
+        }
+    }
+
+    /**
+     * Checks a sweep reports the idle addresses only and shrinks a mostly
+     * emptied table.
+     */
+    @Test
+    public void sweepCompacts() {
+        MacTable table = new MacTable(4096);
+        for (int mac = 1; mac <= 1000; mac++) {
+            table.learn(mac, 1, mac <= 10 ? 2000 : 1000);
+        }
+        assertEquals(2048, table.capacity());
+
+        AtomicLong expired = new AtomicLong();
+        assertEquals(990, table.sweep(1500, mac -> expired.addAndGet(mac)));
+        assertEquals(1000L * 1001 / 2 - 55, expired.get());
+        assertEquals(10, table.size());
+        assertEquals(32, table.capacity());
+        for (int mac = 1; mac <= 10; mac++) {
+            assertEquals(1, table.get(mac));
+        }
+        assertEquals(0, table.sweep(1500));
+    }
+
+    /**
+     * Checks readers always find the stable addresses while a writer grows,
+     * empties and rebuilds the table.
+     */
+    @Test
+    public void readWhileRebuilding() throws InterruptedException {
+        MacTable table = new MacTable(1 << 20);
+        int stable = 64;
+        for (int mac = 1; mac <= stable; mac++) {
+            table.learn(mac, mac, 1);
+        }
+
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicLong misses = new AtomicLong();
+        Thread reader = new Thread(() -> {
+            while (!done.get()) {
+                for (int mac = 1; mac <= stable; mac++) {
+                    if (table.get(mac) != mac) {
+                        misses.incrementAndGet();
+                    }
+                }
+            }
+        });
+        reader.start();
+
+        for (int round = 0; round < 50; round++) {
+            for (int n = 0; n < 2000; n++) {
+                table.learn(0x10000L + n, n, 0);
+            }
+            if (round % 2 == 0) {
+                for (int n = 0; n < 2000; n++) {
+                    table.remove(0x10000L + n);
+                }
+            } else {
+                // Drops the transient addresses, last seen before the stable ones.
+                assertEquals(2000, table.sweep(1));
+            }
+        }
+        done.set(true);
+        reader.join();
+
+        assertEquals(0, misses.get());
+        assertEquals(stable, table.size());
+        assertFalse(table.capacity() > 1024);
+    }
+
+    /**
+     * Compares the insert and lookup times and the heap footprint of the table
+     * with the map of MAC address to port it replaced, at 10k, 100k and 1M
+     * learned addresses. Lookups start from MacAddress objects, as parsed from
+     * a packet. Only logs its measurements and only runs with -Dperf=true.
+     */
+    @Test
+    public void comparedWithConcurrentMap() {
+        assumeTrue(Boolean.getBoolean("perf"));
+        // The first round only warms up both tables.
+        for (int round = 0; round < 2; round++) {
+            for (int size : PERF_SIZES) {
+                MacAddress[] probes = new MacAddress[size];
+                for (int n = 0; n < size; n++) {
+                    probes[n] = MacAddress.valueOf(perfMac(n));
+                }
+
+                long heap = usedHeap();
+                long start = System.nanoTime();
+                MacTable table = new MacTable(size);
+                for (int n = 0; n < size; n++) {
+                    table.learn(perfMac(n), n % 48 + 1, 0);
+                }
+                long tableInsert = System.nanoTime() - start;
+                long tableBytes = usedHeap() - heap;
+                start = System.nanoTime();
+                long found = 0;
+                for (int n = 0; n < PERF_LOOKUPS; n++) {
+                    found += table.get(probes[probe(n, size)].toLong()) != MacTable.NO_PORT ? 1 : 0;
+                }
+                long tableLookup = System.nanoTime() - start;
+                assertEquals(PERF_LOOKUPS, found);
+                table = null;
+
+                heap = usedHeap();
+                start = System.nanoTime();
+                Map<MacAddress, PortNumber> map = Maps.newConcurrentMap();
+                for (int n = 0; n < size; n++) {
+                    map.put(MacAddress.valueOf(perfMac(n)), PortNumber.portNumber(n % 48 + 1));
+                }
+                long mapInsert = System.nanoTime() - start;
+                long mapBytes = usedHeap() - heap;
+                start = System.nanoTime();
+                found = 0;
+                for (int n = 0; n < PERF_LOOKUPS; n++) {
+                    found += map.get(probes[probe(n, size)]) != null ? 1 : 0;
+                }
+                long mapLookup = System.nanoTime() - start;
+                assertEquals(PERF_LOOKUPS, found);
+                map = null;
+
+                if (round > 0) {
+                    log.info("{} MACs: MacTable insert {} ns, lookup {} ns, {} bytes per entry; "
+                                 + "ConcurrentMap insert {} ns, lookup {} ns, {} bytes per entry",
+                             size, tableInsert / size, tableLookup / PERF_LOOKUPS, tableBytes / size,
+                             mapInsert / size, mapLookup / PERF_LOOKUPS, mapBytes / size);
+                }
+            }
+        }
+    }
+
+    // Addresses of one vendor prefix, as on a single segment.
+    private static long perfMac(int n) {
+        return 0x02163e000000L | n;
+    }
+
+    // Visits the learned addresses in a scattered order.
+    private static int probe(int n, int size) {
+        return (int) (n * 7919L % size);
+    }
+
+    // Heap in use once the garbage of the previous measurements is collected.
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int n = 0; n < 3; n++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
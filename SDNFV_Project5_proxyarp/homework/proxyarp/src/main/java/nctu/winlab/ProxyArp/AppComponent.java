@@ -19,23 +19,43 @@ import static org.onosproject.net.config.NetworkConfigEvent.Type.CONFIG_ADDED;
 import static org.onosproject.net.config.NetworkConfigEvent.Type.CONFIG_UPDATED;
 import static org.onosproject.net.config.basics.SubjectFactories.APP_SUBJECT_FACTORY;
 
+import static org.onlab.util.Tools.getIntegerProperty;
+import static org.onlab.util.Tools.groupedThreads;
+
 import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Dictionary;
+import java.util.List;
 import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+import org.onlab.metrics.MetricsComponent;
+import org.onlab.metrics.MetricsFeature;
+import org.onlab.metrics.MetricsService;
 import org.onlab.packet.ARP;
 import org.onlab.packet.DHCP;
 import org.onlab.packet.EthType;
 import org.onlab.packet.Ethernet;
 import org.onlab.packet.IPv4;
+import org.onlab.packet.ICMP6;
+import org.onlab.packet.IPv6;
 import org.onlab.packet.Ip4Address;
+import org.onlab.packet.Ip6Address;
+import org.onlab.packet.IpAddress;
 import org.onlab.packet.MacAddress;
+import org.onlab.packet.ndp.NeighborAdvertisement;
+import org.onlab.packet.ndp.NeighborDiscoveryOptions;
+import org.onlab.packet.ndp.NeighborSolicitation;
+import org.onosproject.cfg.ComponentConfigService;
 import org.onosproject.core.ApplicationId;
 import org.onosproject.core.CoreService;
 import org.onosproject.net.ConnectPoint;
 import org.onosproject.net.DeviceId;
 import org.onosproject.net.FilteredConnectPoint;
+import org.onosproject.net.Host;
 import org.onosproject.net.PortNumber;
 import org.onosproject.net.config.ConfigFactory;
 import org.onosproject.net.config.NetworkConfigEvent;
@@ -46,6 +66,8 @@ import org.onosproject.net.flow.DefaultTrafficSelector;
 import org.onosproject.net.flow.DefaultTrafficTreatment;
 import org.onosproject.net.flow.TrafficSelector;
 import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.host.HostEvent;
+import org.onosproject.net.host.HostListener;
 import org.onosproject.net.host.HostService;
 import org.onosproject.net.intent.IntentService;
 import org.onosproject.net.packet.DefaultOutboundPacket;
@@ -53,18 +75,29 @@ import org.onosproject.net.packet.PacketContext;
 import org.onosproject.net.packet.PacketPriority;
 import org.onosproject.net.packet.PacketProcessor;
 import org.onosproject.net.packet.PacketService;
+import org.osgi.service.component.ComponentContext;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.Counter;
+import com.google.common.collect.Lists;
+
 import shaded.org.apache.maven.model.Build;
 
 /** Sample Network Configuration Service Application. **/
-@Component(immediate = true)
+@Component(immediate = true,
+           property = {
+               "arpCacheTtl:Integer=300",
+               "arpFloodInterval:Integer=1000",
+               "arpFloodBurst:Integer=5",
+               "arpFloodRate:Integer=10",
+           })
 public class AppComponent {
     private final Logger log = LoggerFactory.getLogger(getClass());
 
@@ -83,43 +116,222 @@ public class AppComponent {
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     protected IntentService intentService;
 
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected ComponentConfigService cfgService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected MetricsService metricsService;
+
     private ApplicationId appId;
 
     private PacketProcessor processor;
 
-    private Map<Ip4Address, MacAddress> macTable = new HashMap<>();
-    private Map<Ip4Address, ConnectPoint> connectPortTable = new HashMap<>();
+    /** Seconds an IP to MAC binding stays valid after it was last seen. */
+    private int arpCacheTtl = 300;
+
+    /** Milliseconds before an unanswered target is flooded again. */
+    private int arpFloodInterval = 1000;
+
+    /** Floods a single target may use at once. */
+    private int arpFloodBurst = 5;
+
+    /** Floods per minute a single target is refilled with. */
+    private int arpFloodRate = 10;
+
+    private static final long HOST_TTL = TimeUnit.DAYS.toMillis(365);
+    // Outside of the 48 bits of a MAC address packed into a long.
+    private static final long NO_MAC = -1L;
+
+    private final ArpCache arpCache = new ArpCache(TimeUnit.SECONDS.toMillis(arpCacheTtl));
+    private ScheduledExecutorService agingExecutor;
+    private ScheduledFuture<?> agingTask;
+    private final PendingResolutions<Integer> pending =
+        new PendingResolutions<>(arpFloodInterval, arpFloodBurst, arpFloodRate);
+    private final PendingResolutions<Ip6Address> pendingNdp =
+        new PendingResolutions<>(arpFloodInterval, arpFloodBurst, arpFloodRate);
+
+    private final HostListener hostListener = new InternalHostListener();
+    private Counter floods;
+    private Counter floodsSuppressed;
 
     @Activate
-    protected void activate() {
+    protected void activate(ComponentContext context) {
         appId = coreService.registerApplication("nctu.winlab.ProxyArp");
+        cfgService.registerProperties(getClass());
+        agingExecutor = Executors.newSingleThreadScheduledExecutor(groupedThreads("onos/proxyarp", "aging", log));
+        modified(context);
+
+        MetricsComponent metrics = metricsService.registerComponent("ProxyArp");
+        MetricsFeature arp = metrics.registerFeature("arp");
+        floods = metricsService.createCounter(metrics, arp, "floods");
+        floodsSuppressed = metricsService.createCounter(metrics, arp, "floodsSuppressed");
+        agingExecutor.scheduleWithFixedDelay(() -> {
+            long now = System.currentTimeMillis();
+            pending.sweep(now);
+            pendingNdp.sweep(now);
+        }, 1, 1, TimeUnit.SECONDS);
+
+        // Hosts already known are answered from the first request on.
+        hostService.addListener(hostListener);
+        hostService.getHosts().forEach(this::learnHost);
+
         // Initialize a packet processor
         processor = new ProxyArpProcessor();
         packetService.addProcessor(processor, PacketProcessor.director(3));
 
-        // Request ARP packets.
+        // Request ARP and neighbor discovery packets.
         this.requestPackets();
         log.info("Started");
     }
 
     @Deactivate
     protected void deactivate() {
+        cfgService.unregisterProperties(getClass(), false);
         packetService.removeProcessor(processor);
+        hostService.removeListener(hostListener);
         this.cancelPackets();
+        agingExecutor.shutdownNow();
 
         log.info("Stopped");
     }
 
+    @Modified
+    public void modified(ComponentContext context) {
+        Dictionary<?, ?> properties = context != null ? context.getProperties() : new Properties();
+        arpCacheTtl = Math.max(1, getIntegerProperty(properties, "arpCacheTtl", arpCacheTtl));
+        arpCache.setTtl(TimeUnit.SECONDS.toMillis(arpCacheTtl));
+        arpFloodInterval = Math.max(0, getIntegerProperty(properties, "arpFloodInterval", arpFloodInterval));
+        arpFloodBurst = Math.max(1, getIntegerProperty(properties, "arpFloodBurst", arpFloodBurst));
+        arpFloodRate = Math.max(1, getIntegerProperty(properties, "arpFloodRate", arpFloodRate));
+        pending.configure(arpFloodInterval, arpFloodBurst, arpFloodRate);
+        pendingNdp.configure(arpFloodInterval, arpFloodBurst, arpFloodRate);
+
+        // Expired bindings are never returned; sweeping only reclaims their slots.
+        if (agingTask != null) {
+            agingTask.cancel(false);
+        }
+        agingTask = agingExecutor.scheduleWithFixedDelay(() -> arpCache.sweep(System.currentTimeMillis()),
+                                                         arpCacheTtl, arpCacheTtl, TimeUnit.SECONDS);
+        log.info("Reconfigured");
+    }
+
+    /**
+     * Returns the number of ARP requests and neighbor solicitations flooded to
+     * the edge ports.
+     *
+     * @return flood count
+     */
+    public long floods() {
+        return floods.getCount();
+    }
+
+    /**
+     * Returns the number of ARP requests and neighbor solicitations not
+     * flooded because a flood for the same target was in flight or its flood
+     * budget was used up.
+     *
+     * @return suppressed flood count
+     */
+    public long floodsSuppressed() {
+        return floodsSuppressed.getCount();
+    }
+
+    // Bindings of the host service stay until the host is removed.
+    private void learnHost(Host host) {
+        long now = System.currentTimeMillis();
+        for (IpAddress ip : host.ipAddresses()) {
+            if (ip.isIp4()) {
+                arpCache.learn(ip.getIp4Address().toInt(), host.mac().toLong(), host.location(), now, HOST_TTL);
+            } else {
+                arpCache.learn(ip.getIp6Address(), host.mac().toLong(), host.location(), now, HOST_TTL);
+            }
+        }
+    }
+
+    private void forgetHost(Host host) {
+        for (IpAddress ip : host.ipAddresses()) {
+            if (ip.isIp4()) {
+                arpCache.remove(ip.getIp4Address().toInt(), host.mac().toLong());
+            } else {
+                arpCache.remove(ip.getIp6Address(), host.mac().toLong());
+            }
+        }
+    }
+
+    private List<TrafficSelector> selectors() {
+        List<TrafficSelector> selectors = Lists.newArrayList(
+            DefaultTrafficSelector.builder().matchEthType(Ethernet.TYPE_ARP).build());
+        for (byte type : new byte[] {ICMP6.NEIGHBOR_SOLICITATION, ICMP6.NEIGHBOR_ADVERTISEMENT}) {
+            selectors.add(DefaultTrafficSelector.builder()
+                .matchEthType(Ethernet.TYPE_IPV6)
+                .matchIPProtocol(IPv6.PROTOCOL_ICMP6)
+                .matchIcmpv6Type(type)
+                .build());
+        }
+        return selectors;
+    }
+
     private void requestPackets() {
-        TrafficSelector.Builder selector = DefaultTrafficSelector.builder()
-            .matchEthType(Ethernet.TYPE_ARP);
-        packetService.requestPackets(selector.build(), PacketPriority.REACTIVE, appId, Optional.empty());
+        for (TrafficSelector selector : selectors()) {
+            packetService.requestPackets(selector, PacketPriority.REACTIVE, appId, Optional.empty());
+        }
     }
 
     private void cancelPackets() {
-        TrafficSelector.Builder selector = DefaultTrafficSelector.builder()
-            .matchEthType(Ethernet.TYPE_ARP);
-        packetService.cancelPackets(selector.build(), PacketPriority.REACTIVE, appId, Optional.empty());
+        for (TrafficSelector selector : selectors()) {
+            packetService.cancelPackets(selector, PacketPriority.REACTIVE, appId, Optional.empty());
+        }
+    }
+
+    private void reply(ConnectPoint to, int ip, long mac, Ethernet request) {
+        ByteBuffer arpReply;
+        if (ArpReplyTemplate.applies(request)) {
+            arpReply = ArpReplyTemplate.reply(ip, mac, request);
+        } else {
+            arpReply = ByteBuffer.wrap(
+                ARP.buildArpReply(Ip4Address.valueOf(ip), MacAddress.valueOf(mac), request).serialize());
+        }
+        emit(to, arpReply);
+    }
+
+    private void emit(ConnectPoint to, ByteBuffer data) {
+        TrafficTreatment.Builder treatmentBuilder = DefaultTrafficTreatment.builder()
+            .setOutput(to.port());
+        packetService.emit(new DefaultOutboundPacket(to.deviceId(), treatmentBuilder.build(), data));
+    }
+
+    // Learns an IPv6 neighbor and answers the solicitations waiting for it.
+    private boolean learnNeighbor(Ip6Address ip, long mac, ConnectPoint location, long now) {
+        arpCache.learn(ip, mac, location, now);
+        List<PendingResolutions.Waiter> waiters = pendingNdp.resolved(ip);
+        for (PendingResolutions.Waiter waiter : waiters) {
+            Ethernet advertisement = NeighborSolicitation.buildNdpAdv(ip, MacAddress.valueOf(mac), waiter.request());
+            emit(waiter.location(), ByteBuffer.wrap(advertisement.serialize()));
+        }
+        return !waiters.isEmpty();
+    }
+
+    private class InternalHostListener implements HostListener {
+        @Override
+        public void event(HostEvent event) {
+            switch (event.type()) {
+            case HOST_ADDED:
+                learnHost(event.subject());
+                break;
+            case HOST_UPDATED:
+            case HOST_MOVED:
+                if (event.prevSubject() != null) {
+                    forgetHost(event.prevSubject());
+                }
+                learnHost(event.subject());
+                break;
+            case HOST_REMOVED:
+                forgetHost(event.subject());
+                break;
+            default:
+                break;
+            }
+        }
     }
 
     private class ProxyArpProcessor implements PacketProcessor {
@@ -130,48 +342,121 @@ public class AppComponent {
                 return;
             }
 
+            if (packet.getEtherType() == Ethernet.TYPE_IPV6) {
+                processNdp(context, packet);
+                return;
+            }
+
             if (packet.getEtherType() != Ethernet.TYPE_ARP) {
                 return;
             }
 
             ARP arpPacket = (ARP) packet.getPayload();
             ConnectPoint fromPoint = context.inPacket().receivedFrom();
-            MacAddress senderMac = MacAddress.valueOf(arpPacket.getSenderHardwareAddress());
-            MacAddress receiverMac = MacAddress.valueOf(arpPacket.getTargetHardwareAddress());
-            Ip4Address senderIpv4 = Ip4Address.valueOf(arpPacket.getSenderProtocolAddress());
-            Ip4Address targetIpv4 = Ip4Address.valueOf(arpPacket.getTargetProtocolAddress());
+            long now = System.currentTimeMillis();
+            int senderIp = IPv4.toIPv4Address(arpPacket.getSenderProtocolAddress());
+            int targetIp = IPv4.toIPv4Address(arpPacket.getTargetProtocolAddress());
+            long senderMac = MacAddress.valueOf(arpPacket.getSenderHardwareAddress()).toLong();
+            arpCache.learn(senderIp, senderMac, fromPoint, now);
+
+            // Any ARP of a host answers the requests waiting for it.
+            List<PendingResolutions.Waiter> waiters = pending.resolved(senderIp);
+            for (PendingResolutions.Waiter waiter : waiters) {
+                reply(waiter.location(), senderIp, senderMac, waiter.request());
+            }
+
             if (arpPacket.getOpCode() == ARP.OP_REPLY) {
-                if (macTable.containsKey(senderIpv4)) {
+                // Only a flooded request gets a reply from the host itself; pass it on to the requester.
+                log.info("RECV REPLY. Requested MAC: {}", MacAddress.valueOf(arpPacket.getTargetHardwareAddress()));
+                ArpCache.Entry requester = arpCache.lookup(targetIp, now);
+                if (requester == null || !waiters.isEmpty()) {
                     return;
                 }
-
-                log.info("RECV REPLY. Requested MAC: {}", receiverMac.toString());
-                macTable.put(senderIpv4, senderMac);
-                connectPortTable.put(senderIpv4, fromPoint);
-                
                 TrafficTreatment.Builder treatmentBuilder = DefaultTrafficTreatment.builder()
-                    .setOutput(connectPortTable.get(targetIpv4).port());
+                    .setOutput(requester.location().port());
                 packetService.emit(new DefaultOutboundPacket(
-                    connectPortTable.get(targetIpv4).deviceId(), treatmentBuilder.build(), context.outPacket().data()));
+                    requester.location().deviceId(), treatmentBuilder.build(), context.outPacket().data()));
 
                 return;
             } else if (arpPacket.getOpCode() == ARP.OP_REQUEST) {
-                if (!macTable.containsKey(targetIpv4)) {
-                    macTable.put(senderIpv4, senderMac);
-                    connectPortTable.put(senderIpv4, fromPoint);
-                    log.info("TABLE MISSED. SEND request to edge ports.");
-                    edgePortService.emitPacket(context.outPacket().data(), Optional.empty());
-                } else {     
-                    log.info("TABLE HIT. Requested MAC: {}", senderMac.toString());
-                    Ethernet arpReply = ARP.buildArpReply(targetIpv4, macTable.get(targetIpv4), packet);
-                    TrafficTreatment.Builder treatmentBuilder = DefaultTrafficTreatment.builder()
-                        .setOutput(fromPoint.port());
-                    packetService.emit(new DefaultOutboundPacket(
-                        fromPoint.deviceId(), treatmentBuilder.build(), ByteBuffer.wrap(arpReply.serialize())));
+                ArpCache.Entry target = arpCache.lookup(targetIp, now);
+                if (target == null) {
+                    if (pending.await(targetIp, senderMac, fromPoint, packet, now)) {
+                        log.info("TABLE MISSED. SEND request to edge ports.");
+                        floods.inc();
+                        edgePortService.emitPacket(context.outPacket().data(), Optional.empty());
+                    } else {
+                        floodsSuppressed.inc();
+                    }
+                } else {
+                    log.info("TABLE HIT. Requested MAC: {}", target.mac());
+                    reply(fromPoint, targetIp, target.macLong(), packet);
                 }
                 return;
             }
             return;
         }
+
+        private void processNdp(PacketContext context, Ethernet packet) {
+            IPv6 ipv6 = (IPv6) packet.getPayload();
+            if (ipv6.getNextHeader() != IPv6.PROTOCOL_ICMP6) {
+                return;
+            }
+            ICMP6 icmp6 = (ICMP6) ipv6.getPayload();
+            Ip6Address senderIp = Ip6Address.valueOf(ipv6.getSourceAddress());
+            if (senderIp.isZero()) {
+                // Duplicate address detection is left to the hosts.
+                return;
+            }
+            ConnectPoint fromPoint = context.inPacket().receivedFrom();
+            long now = System.currentTimeMillis();
+
+            // Only solicitations and advertisements bind an address, through their
+            // link-layer address option rather than the frame source.
+            if (icmp6.getIcmpType() == ICMP6.NEIGHBOR_ADVERTISEMENT) {
+                NeighborAdvertisement advertisement = (NeighborAdvertisement) icmp6.getPayload();
+                Ip6Address targetIp = Ip6Address.valueOf(advertisement.getTargetAddress());
+                long targetMac = linkLayerAddress(advertisement.getOptions(),
+                                                  NeighborDiscoveryOptions.TYPE_TARGET_LL_ADDRESS);
+                boolean answered = targetMac != NO_MAC && learnNeighbor(targetIp, targetMac, fromPoint, now);
+                // Pass a solicited advertisement nobody waited for on to the requester.
+                Ip6Address dstIp = Ip6Address.valueOf(ipv6.getDestinationAddress());
+                ArpCache.Entry requester = dstIp.isMulticast() ? null : arpCache.lookup(dstIp, now);
+                if (requester != null && !answered) {
+                    emit(requester.location(), context.outPacket().data());
+                }
+            } else if (icmp6.getIcmpType() == ICMP6.NEIGHBOR_SOLICITATION) {
+                NeighborSolicitation solicitation = (NeighborSolicitation) icmp6.getPayload();
+                long senderMac = linkLayerAddress(solicitation.getOptions(),
+                                                  NeighborDiscoveryOptions.TYPE_SOURCE_LL_ADDRESS);
+                if (senderMac != NO_MAC) {
+                    learnNeighbor(senderIp, senderMac, fromPoint, now);
+                }
+                Ip6Address targetIp = Ip6Address.valueOf(solicitation.getTargetAddress());
+                ArpCache.Entry target = arpCache.lookup(targetIp, now);
+                if (target != null) {
+                    Ethernet advertisement = NeighborSolicitation.buildNdpAdv(targetIp, target.mac(), packet);
+                    emit(fromPoint, ByteBuffer.wrap(advertisement.serialize()));
+                } else if (pendingNdp.await(targetIp, packet.getSourceMAC().toLong(), fromPoint, packet, now)) {
+                    floods.inc();
+                    edgePortService.emitPacket(context.outPacket().data(), Optional.empty());
+                } else {
+                    floodsSuppressed.inc();
+                }
+            }
+        }
+
+        /**
+         * Returns the MAC address of a link-layer address option, or
+         * {@link #NO_MAC} if the message carries none.
+         */
+        private long linkLayerAddress(List<NeighborDiscoveryOptions.Option> options, byte type) {
+            for (NeighborDiscoveryOptions.Option option : options) {
+                if (option.type() == type && option.data().length == Ethernet.DATALAYER_ADDRESS_LENGTH) {
+                    return MacAddress.valueOf(option.data()).toLong();
+                }
+            }
+            return NO_MAC;
+        }
     }
 }
@@ -0,0 +1,401 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.winlab.ProxyArp;
+
+import java.util.Map;
+import java.util.concurrent.locks.StampedLock;
+
+import org.onlab.packet.Ip6Address;
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.ConnectPoint;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.Maps;
+
+/**
+ * IPv4 and IPv6 to (MAC, location) cache of the proxy.
+ * <p>
+ * Addresses are the raw IPv4 ints, kept in an open addressing table next to
+ * immutable bindings, so a lookup is a probe of two arrays. Updates are
+ * serialized by a lock; lookups are optimistic and only fall back to the read
+ * lock when they race with an update. A binding expires a time to live after
+ * it was last learned and is dropped by {@link #sweep}; learning an unchanged
+ * binding never brings its expiry closer, so bindings given a long time to
+ * live, such as the hosts known to the host service, survive ARP refreshes.
+ * <p>
+ * IPv6 neighbors are kept in a concurrent map with the same bindings, time to
+ * live and sweeping.
+ */
+public final class ArpCache {
+
+    private static final int MIN_CAPACITY = 64;
+
+    private final StampedLock lock = new StampedLock();
+
+    private int[] keys = new int[MIN_CAPACITY];
+    private Entry[] entries = new Entry[MIN_CAPACITY];
+    private int size;
+    private volatile long ttlMillis;
+
+    private final Map<Ip6Address, Entry> neighbors = Maps.newConcurrentMap();
+
+    /**
+     * Binding of an address.
+     */
+    public static final class Entry {
+        private final long mac;
+        private final ConnectPoint location;
+        private final long expiresMillis;
+
+        private Entry(long mac, ConnectPoint location, long expiresMillis) {
+            this.mac = mac;
+            this.location = location;
+            this.expiresMillis = expiresMillis;
+        }
+
+        public MacAddress mac() {
+            return MacAddress.valueOf(mac);
+        }
+
+        public long macLong() {
+            return mac;
+        }
+
+        public ConnectPoint location() {
+            return location;
+        }
+
+        public long expiresMillis() {
+            return expiresMillis;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                .add("mac", mac())
+                .add("location", location)
+                .add("expiresMillis", expiresMillis)
+                .toString();
+        }
+    }
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param ttlMillis time a binding stays valid after it was last learned
+     */
+    public ArpCache(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Returns the binding of an address unless it expired.
+     *
+     * @param ip IPv4 address as an int in network order
+     * @param nowMillis current time
+     * @return binding or null
+     */
+    public Entry lookup(int ip, long nowMillis) {
+        long stamp = lock.tryOptimisticRead();
+        Entry entry = find(keys, entries, ip);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                entry = find(keys, entries, ip);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return entry == null || entry.expiresMillis <= nowMillis ? null : entry;
+    }
+
+    private static Entry find(int[] k, Entry[] e, int ip) {
+        // An optimistic reader may see the arrays of two generations; the
+        // lengths are checked and the result is validated by the caller.
+        int mask = Math.min(k.length, e.length) - 1;
+        for (int i = index(ip, mask), n = 0; n <= mask; i = (i + 1) & mask, n++) {
+            Entry entry = e[i];
+            if (entry == null) {
+                return null;
+            }
+            if (k[i] == ip) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Learns or refreshes the binding of an address.
+     *
+     * @param ip IPv4 address as an int in network order
+     * @param mac MAC address packed into a long
+     * @param location where the host is attached
+     * @param nowMillis current time
+     * @return the previous binding if it had not expired, otherwise null
+     */
+    public Entry learn(int ip, long mac, ConnectPoint location, long nowMillis) {
+        return learn(ip, mac, location, nowMillis, ttlMillis);
+    }
+
+    /**
+     * Learns or refreshes the binding of an address with a given time to live.
+     *
+     * @param ip IPv4 address as an int in network order
+     * @param mac MAC address packed into a long
+     * @param location where the host is attached
+     * @param nowMillis current time
+     * @param entryTtlMillis time the binding stays valid
+     * @return the previous binding if it had not expired, otherwise null
+     */
+    public Entry learn(int ip, long mac, ConnectPoint location, long nowMillis, long entryTtlMillis) {
+        long expiresMillis = nowMillis + entryTtlMillis;
+        long stamp = lock.writeLock();
+        try {
+            if ((size + 1) * 2 > keys.length) {
+                resize(keys.length * 2);
+            }
+            int mask = keys.length - 1;
+            int i = index(ip, mask);
+            while (entries[i] != null && keys[i] != ip) {
+                i = (i + 1) & mask;
+            }
+            Entry previous = entries[i];
+            if (previous == null) {
+                size++;
+            } else if (previous.mac == mac && previous.location.equals(location)) {
+                expiresMillis = Math.max(expiresMillis, previous.expiresMillis);
+            }
+            keys[i] = ip;
+            entries[i] = new Entry(mac, location, expiresMillis);
+            return previous == null || previous.expiresMillis <= nowMillis ? null : previous;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes the binding of an address.
+     *
+     * @param ip IPv4 address as an int in network order
+     * @return the removed binding or null
+     */
+    public Entry remove(int ip) {
+        long stamp = lock.writeLock();
+        try {
+            int mask = keys.length - 1;
+            for (int i = index(ip, mask); entries[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == ip) {
+                    Entry removed = entries[i];
+                    removeAt(i);
+                    return removed;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes the binding of an address if it still points at a MAC address.
+     *
+     * @param ip IPv4 address as an int in network order
+     * @param mac MAC address packed into a long
+     * @return true if the binding was removed
+     */
+    public boolean remove(int ip, long mac) {
+        long stamp = lock.writeLock();
+        try {
+            int mask = keys.length - 1;
+            for (int i = index(ip, mask); entries[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == ip) {
+                    if (entries[i].mac != mac) {
+                        return false;
+                    }
+                    removeAt(i);
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Returns the binding of an IPv6 address unless it expired.
+     *
+     * @param ip IPv6 address
+     * @param nowMillis current time
+     * @return binding or null
+     */
+    public Entry lookup(Ip6Address ip, long nowMillis) {
+        Entry entry = neighbors.get(ip);
+        return entry == null || entry.expiresMillis <= nowMillis ? null : entry;
+    }
+
+    /**
+     * Learns or refreshes the binding of an IPv6 address.
+     *
+     * @param ip IPv6 address
+     * @param mac MAC address packed into a long
+     * @param location where the host is attached
+     * @param nowMillis current time
+     * @return the previous binding if it had not expired, otherwise null
+     */
+    public Entry learn(Ip6Address ip, long mac, ConnectPoint location, long nowMillis) {
+        return learn(ip, mac, location, nowMillis, ttlMillis);
+    }
+
+    /**
+     * Learns or refreshes the binding of an IPv6 address with a given time to live.
+     *
+     * @param ip IPv6 address
+     * @param mac MAC address packed into a long
+     * @param location where the host is attached
+     * @param nowMillis current time
+     * @param entryTtlMillis time the binding stays valid
+     * @return the previous binding if it had not expired, otherwise null
+     */
+    public Entry learn(Ip6Address ip, long mac, ConnectPoint location, long nowMillis, long entryTtlMillis) {
+        Entry[] previous = new Entry[1];
+        neighbors.compute(ip, (k, entry) -> {
+            long expiresMillis = nowMillis + entryTtlMillis;
+            if (entry != null && entry.mac == mac && entry.location.equals(location)) {
+                expiresMillis = Math.max(expiresMillis, entry.expiresMillis);
+            }
+            previous[0] = entry;
+            return new Entry(mac, location, expiresMillis);
+        });
+        return previous[0] == null || previous[0].expiresMillis <= nowMillis ? null : previous[0];
+    }
+
+    /**
+     * Removes the binding of an IPv6 address if it still points at a MAC address.
+     *
+     * @param ip IPv6 address
+     * @param mac MAC address packed into a long
+     * @return true if the binding was removed
+     */
+    public boolean remove(Ip6Address ip, long mac) {
+        boolean[] removed = new boolean[1];
+        neighbors.computeIfPresent(ip, (k, entry) -> {
+            removed[0] = entry.mac == mac;
+            return removed[0] ? null : entry;
+        });
+        return removed[0];
+    }
+
+    /**
+     * Drops the expired bindings.
+     *
+     * @param nowMillis current time
+     * @return number of dropped bindings
+     */
+    public int sweep(long nowMillis) {
+        long stamp = lock.writeLock();
+        try {
+            int expired = 0;
+            for (int i = 0; i < entries.length; i++) {
+                // Removing shifts a later entry into this slot, so look at it again.
+                while (entries[i] != null && entries[i].expiresMillis <= nowMillis) {
+                    removeAt(i);
+                    expired++;
+                }
+            }
+            for (Ip6Address ip : neighbors.keySet()) {
+                Entry entry = neighbors.get(ip);
+                if (entry != null && entry.expiresMillis <= nowMillis && neighbors.remove(ip, entry)) {
+                    expired++;
+                }
+            }
+            if (keys.length > MIN_CAPACITY && size * 8 < keys.length) {
+                resize(Math.max(MIN_CAPACITY, Integer.highestOneBit(size) * 4));
+            }
+            return expired;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Changes the time to live of the bindings learned from now on.
+     *
+     * @param ttlMillis time a binding stays valid after it was last learned
+     */
+    public void setTtl(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Returns the number of bindings, including expired ones not swept yet.
+     *
+     * @return cache size
+     */
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return size + neighbors.size();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Backward shift deletion, so lookups never need tombstones.
+    private void removeAt(int slot) {
+        int mask = keys.length - 1;
+        int hole = slot;
+        for (int i = (hole + 1) & mask; entries[i] != null; i = (i + 1) & mask) {
+            int home = index(keys[i], mask);
+            // Move the entry back if the hole lies between its home slot and its slot.
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                keys[hole] = keys[i];
+                entries[hole] = entries[i];
+                hole = i;
+            }
+        }
+        entries[hole] = null;
+        size--;
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        Entry[] oldEntries = entries;
+        int[] newKeys = new int[capacity];
+        Entry[] newEntries = new Entry[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldEntries.length; j++) {
+            if (oldEntries[j] == null) {
+                continue;
+            }
+            int i = index(oldKeys[j], mask);
+            while (newEntries[i] != null) {
+                i = (i + 1) & mask;
+            }
+            newKeys[i] = oldKeys[j];
+            newEntries[i] = oldEntries[j];
+        }
+        keys = newKeys;
+        entries = newEntries;
+    }
+
+    private static int index(int ip, int mask) {
+        // Hosts of a subnet differ in the low bits; mix them over the index range.
+        int h = ip * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.winlab.ProxyArp;
+
+import java.nio.ByteBuffer;
+
+import org.onlab.packet.ARP;
+import org.onlab.packet.Ethernet;
+
+/**
+ * Untagged ARP reply frame written straight from a request.
+ * <p>
+ * A copy of a pre-built reply is patched with the addresses that change
+ * between replies, which gives the same bytes as serializing the reply of
+ * {@link ARP#buildArpReply} without building its packet objects. The copy is
+ * not reused since the outbound packet keeps its buffer after it is emitted.
+ */
+final class ArpReplyTemplate {
+
+    static final int LENGTH = 42;
+
+    private static final int ETH_DST = 0;
+    private static final int ETH_SRC = 6;
+    private static final int SENDER_MAC = 22;
+    private static final int SENDER_IP = 28;
+    private static final int TARGET_MAC = 32;
+    private static final int TARGET_IP = 38;
+
+    private static final byte[] TEMPLATE = new byte[LENGTH];
+
+    static {
+        ByteBuffer bb = ByteBuffer.wrap(TEMPLATE);
+        bb.putShort(12, Ethernet.TYPE_ARP);
+        bb.putShort(14, ARP.HW_TYPE_ETHERNET);
+        bb.putShort(16, ARP.PROTO_TYPE_IP);
+        bb.put(18, (byte) Ethernet.DATALAYER_ADDRESS_LENGTH);
+        bb.put(19, (byte) 4);
+        bb.putShort(20, ARP.OP_REPLY);
+    }
+
+    private ArpReplyTemplate() {
+    }
+
+    /**
+     * Tells whether a request can be answered with the template.
+     *
+     * @param request parsed ARP request
+     * @return true if the request is untagged
+     */
+    static boolean applies(Ethernet request) {
+        return request.getVlanID() == Ethernet.VLAN_UNTAGGED && request.getQinQVID() == Ethernet.VLAN_UNTAGGED;
+    }
+
+    /**
+     * Builds the reply to an untagged request.
+     *
+     * @param ip IPv4 address asked for, as an int in network order
+     * @param mac MAC address bound to it, packed into a long
+     * @param request parsed ARP request
+     * @return reply frame
+     */
+    static ByteBuffer reply(int ip, long mac, Ethernet request) {
+        long requester = request.getSourceMAC().toLong();
+        byte[] frame = TEMPLATE.clone();
+        putMac(frame, ETH_DST, requester);
+        putMac(frame, ETH_SRC, mac);
+        putMac(frame, SENDER_MAC, mac);
+        putInt(frame, SENDER_IP, ip);
+        putMac(frame, TARGET_MAC, requester);
+        System.arraycopy(((ARP) request.getPayload()).getSenderProtocolAddress(), 0, frame, TARGET_IP, 4);
+        return ByteBuffer.wrap(frame);
+    }
+
+    private static void putMac(byte[] frame, int offset, long mac) {
+        for (int i = Ethernet.DATALAYER_ADDRESS_LENGTH - 1; i >= 0; i--) {
+            frame[offset + i] = (byte) mac;
+            mac >>>= 8;
+        }
+    }
+
+    private static void putInt(byte[] frame, int offset, int value) {
+        frame[offset] = (byte) (value >>> 24);
+        frame[offset + 1] = (byte) (value >>> 16);
+        frame[offset + 2] = (byte) (value >>> 8);
+        frame[offset + 3] = (byte) value;
+    }
+}
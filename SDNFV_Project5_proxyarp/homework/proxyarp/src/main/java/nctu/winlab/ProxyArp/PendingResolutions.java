@@ -0,0 +1,191 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.winlab.ProxyArp;
+
+import java.util.List;
+import java.util.Map;
+
+import org.onlab.packet.Ethernet;
+import org.onosproject.net.ConnectPoint;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Requests waiting for an address the proxy does not know yet.
+ * <p>
+ * Requests for the same target are coalesced: the first one floods, the
+ * following ones only queue their requester until the target answers or the
+ * flood interval passes. Each target also has a token bucket, so a target
+ * that is asked for over and over, answered or not, floods at most a burst
+ * and then at a fixed rate. Targets are updated atomically in their map bin.
+ *
+ * @param <K> type of the target addresses
+ */
+final class PendingResolutions<K> {
+
+    private static final int MAX_WAITERS = 256;
+    private static final long WAITER_TIMEOUT_MILLIS = 10000;
+
+    private final Map<K, Target> targets = Maps.newConcurrentMap();
+
+    private volatile long floodIntervalMillis;
+    private volatile long millisPerFlood;
+    private volatile long bucketMillis;
+
+    /**
+     * Requester waiting for an address.
+     */
+    static final class Waiter {
+        private final ConnectPoint location;
+        private final Ethernet request;
+
+        private Waiter(ConnectPoint location, Ethernet request) {
+            this.location = location;
+            this.request = request;
+        }
+
+        ConnectPoint location() {
+            return location;
+        }
+
+        Ethernet request() {
+            return request;
+        }
+    }
+
+    private static final class Target {
+        // Requesters by MAC address, so a retrying host waits once.
+        private final Map<Long, Waiter> waiters = Maps.newLinkedHashMap();
+        private long lastRequest;
+        private long lastFlood = Long.MIN_VALUE / 2;
+        // Token bucket in milliseconds of refill; a flood costs millisPerFlood.
+        private long budget;
+        private long refilled;
+
+        private Target(long budget, long nowMillis) {
+            this.budget = budget;
+            this.refilled = nowMillis;
+        }
+
+        private void refill(long capacity, long nowMillis) {
+            budget = Math.min(capacity, budget + Math.max(0, nowMillis - refilled));
+            refilled = nowMillis;
+        }
+    }
+
+    /**
+     * Creates an empty table.
+     *
+     * @param floodIntervalMillis minimum time between floods for a target
+     * @param floodBurst floods a target may use at once
+     * @param floodsPerMinute floods a target is refilled with per minute
+     */
+    PendingResolutions(long floodIntervalMillis, int floodBurst, int floodsPerMinute) {
+        configure(floodIntervalMillis, floodBurst, floodsPerMinute);
+    }
+
+    /**
+     * Changes the flood limits.
+     *
+     * @param floodIntervalMillis minimum time between floods for a target
+     * @param floodBurst floods a target may use at once
+     * @param floodsPerMinute floods a target is refilled with per minute
+     */
+    void configure(long floodIntervalMillis, int floodBurst, int floodsPerMinute) {
+        this.floodIntervalMillis = floodIntervalMillis;
+        this.millisPerFlood = 60000L / Math.max(1, floodsPerMinute);
+        this.bucketMillis = Math.max(1, floodBurst) * millisPerFlood;
+    }
+
+    /**
+     * Queues a requester of an unknown address.
+     *
+     * @param ip target address
+     * @param mac MAC address of the requester packed into a long
+     * @param location where the requester is attached
+     * @param request request to answer
+     * @param nowMillis current time
+     * @return true if the request should be flooded
+     */
+    boolean await(K ip, long mac, ConnectPoint location, Ethernet request, long nowMillis) {
+        boolean[] flood = new boolean[1];
+        long capacity = bucketMillis;
+        targets.compute(ip, (k, target) -> {
+            if (target == null) {
+                target = new Target(capacity, nowMillis);
+            }
+            target.lastRequest = nowMillis;
+            if (target.waiters.size() < MAX_WAITERS || target.waiters.containsKey(mac)) {
+                target.waiters.put(mac, new Waiter(location, request));
+            }
+            target.refill(capacity, nowMillis);
+            if (nowMillis - target.lastFlood >= floodIntervalMillis && target.budget >= millisPerFlood) {
+                target.lastFlood = nowMillis;
+                target.budget -= millisPerFlood;
+                flood[0] = true;
+            }
+            return target;
+        });
+        return flood[0];
+    }
+
+    /**
+     * Takes the requesters waiting for an address that became known. The
+     * flood budget of the target is kept.
+     *
+     * @param ip address
+     * @return waiting requesters, possibly none
+     */
+    List<Waiter> resolved(K ip) {
+        List<Waiter> taken = Lists.newArrayList();
+        targets.computeIfPresent(ip, (k, target) -> {
+            taken.addAll(target.waiters.values());
+            target.waiters.clear();
+            target.lastFlood = Long.MIN_VALUE / 2;
+            return target;
+        });
+        return taken;
+    }
+
+    /**
+     * Gives up on requesters that waited too long and drops the targets with
+     * nobody waiting and a full flood budget.
+     *
+     * @param nowMillis current time
+     */
+    void sweep(long nowMillis) {
+        long capacity = bucketMillis;
+        for (K ip : targets.keySet()) {
+            targets.computeIfPresent(ip, (k, target) -> {
+                if (nowMillis - target.lastRequest > WAITER_TIMEOUT_MILLIS) {
+                    target.waiters.clear();
+                }
+                target.refill(capacity, nowMillis);
+                return target.waiters.isEmpty() && target.budget >= capacity ? null : target;
+            });
+        }
+    }
+
+    /**
+     * Returns the number of targets tracked.
+     *
+     * @return table size
+     */
+    int size() {
+        return targets.size();
+    }
+}
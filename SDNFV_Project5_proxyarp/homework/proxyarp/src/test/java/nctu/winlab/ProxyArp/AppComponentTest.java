@@ -15,33 +15,264 @@
  */
 package nctu.winlab.ProxyArp;
 
-import org.junit.After;
-import org.junit.Before;
-import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntFunction;
 
-import nctu.winlab.ProxyArp.AppComponent;
+import org.junit.Test;
+import org.onlab.packet.ARP;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.Ip6Address;
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.ConnectPoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Set of tests of the ONOS application component.
  */
 public class AppComponentTest {
 
-    private AppComponent component;
+    private static final ConnectPoint CP1 = ConnectPoint.deviceConnectPoint("of:0000000000000001/1");
+    private static final ConnectPoint CP2 = ConnectPoint.deviceConnectPoint("of:0000000000000001/2");
+    private static final int HOSTS = 4096;
+    private static final int LOOKUPS = 1000000;
 
-    @Before
-    public void setUp() {
-        // component = new AppComponent();
-        // component.activate();
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private static int ip(int host) {
+        return Ip4Address.valueOf("10.0.0.0").toInt() + host;
     }
 
-    @After
-    public void tearDown() {
-        // component.deactivate();
+    /**
+     * Checks bindings are learned, refreshed and expire after their time to live.
+     */
+    @Test
+    public void arpCacheAging() {
+        ArpCache cache = new ArpCache(1000);
+        assertNull(cache.learn(ip(1), 0x1L, CP1, 0));
+        assertEquals(0x1L, cache.lookup(ip(1), 500).macLong());
+
+        // A reply refreshes the binding and may move it.
+        assertNotNull(cache.learn(ip(1), 0x1L, CP2, 900));
+        assertEquals(CP2, cache.lookup(ip(1), 1500).location());
+        assertNull(cache.lookup(ip(1), 1900));
+
+        assertEquals(1, cache.sweep(1900));
+        assertEquals(0, cache.size());
     }
 
+    /**
+     * Checks a binding from the host service outlives ARP refreshes and is
+     * only removed while it still points at the host.
+     */
     @Test
-    public void basics() {
+    public void hostBindings() {
+        ArpCache cache = new ArpCache(1000);
+        cache.learn(ip(1), 0x1L, CP1, 0, Long.MAX_VALUE / 2);
+        cache.learn(ip(1), 0x1L, CP1, 100);
+        assertNotNull(cache.lookup(ip(1), 5000));
+
+        assertFalse(cache.remove(ip(1), 0x2L));
+        assertTrue(cache.remove(ip(1), 0x1L));
+        assertNull(cache.lookup(ip(1), 0));
+    }
+
+    /**
+     * Checks IPv6 neighbors share the bindings and aging of IPv4 addresses.
+     */
+    @Test
+    public void neighborAging() {
+        ArpCache cache = new ArpCache(1000);
+        Ip6Address neighbor = Ip6Address.valueOf("2001:db8::1");
+        assertNull(cache.learn(neighbor, 0x1L, CP1, 0));
+        cache.learn(ip(1), 0x1L, CP1, 0);
+        assertEquals(CP1, cache.lookup(neighbor, 500).location());
+        assertEquals(2, cache.size());
+
+        assertFalse(cache.remove(neighbor, 0x2L));
+        assertNull(cache.lookup(neighbor, 1000));
+        assertEquals(2, cache.sweep(1000));
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * Checks a storm of requests for one target floods once per interval, at
+     * most a burst in a row, and every requester is handed back once.
+     */
+    @Test
+    public void pendingCoalescing() {
+        PendingResolutions<Integer> pending = new PendingResolutions<>(1000, 2, 1);
+        int floods = 0;
+        for (int host = 0; host < 500; host++) {
+            floods += pending.await(ip(1), host, CP1, null, host) ? 1 : 0;
+        }
+        assertEquals(1, floods);
+        assertEquals(256, pending.resolved(ip(1)).size());
+        assertTrue(pending.resolved(ip(1)).isEmpty());
+
+        // The budget of the target outlives its resolution.
+        assertTrue(pending.await(ip(1), 0x1L, CP1, null, 1000));
+        assertFalse(pending.await(ip(1), 0x1L, CP1, null, 2000));
+        assertEquals(1, pending.resolved(ip(1)).size());
+
+        pending.sweep(Long.MAX_VALUE / 2);
+        assertEquals(0, pending.size());
+    }
+
+    /**
+     * Checks the table stays consistent while growing, removing and sweeping.
+     */
+    @Test
+    public void arpCacheChurn() {
+        ArpCache cache = new ArpCache(1000);
+        for (int host = 0; host < HOSTS; host++) {
+            cache.learn(ip(host), host, CP1, host % 2 == 0 ? 0 : 5000);
+        }
+        assertEquals(HOSTS, cache.size());
+        for (int host = 0; host < HOSTS; host += 4) {
+            assertNotNull(cache.remove(ip(host)));
+        }
+        assertEquals(HOSTS / 4, cache.sweep(2000));
+        for (int host = 0; host < HOSTS; host++) {
+            ArpCache.Entry entry = cache.lookup(ip(host), 2000);
+            if (host % 2 == 0) {
+                assertNull(entry);
+            } else {
+                assertEquals(host, entry.macLong());
+            }
+        }
+        assertEquals(HOSTS / 2, cache.size());
+    }
+
+    /**
+     * Compares the hit path of the cache with the two hash maps it replaces.
+     * Only run with -Dperf=true.
+     */
+    @Test
+    public void hitPathLatency() {
+        assumeTrue(Boolean.getBoolean("perf"));
+        ArpCache cache = new ArpCache(Long.MAX_VALUE / 2);
+        Map<Ip4Address, MacAddress> macTable = new HashMap<>();
+        Map<Ip4Address, ConnectPoint> connectPortTable = new HashMap<>();
+        for (int host = 0; host < HOSTS; host++) {
+            cache.learn(ip(host), host, CP1, 0);
+            macTable.put(Ip4Address.valueOf(ip(host)), MacAddress.valueOf(host));
+            connectPortTable.put(Ip4Address.valueOf(ip(host)), CP1);
+        }
+
+        long found = 0;
+        long start = System.nanoTime();
+        for (int n = 0; n < LOOKUPS; n++) {
+            ArpCache.Entry entry = cache.lookup(ip(n % HOSTS), 1);
+            found += entry.location() != null ? 1 : 0;
+        }
+        long cacheNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int n = 0; n < LOOKUPS; n++) {
+            Ip4Address key = Ip4Address.valueOf(ip(n % HOSTS));
+            if (macTable.containsKey(key)) {
+                found += macTable.get(key) != null && connectPortTable.get(key) != null ? 1 : 0;
+            }
+        }
+        long mapNanos = System.nanoTime() - start;
+
+        assertEquals(2L * LOOKUPS, found);
+        log.info("Hit path: ArpCache {} ns/lookup, two HashMaps {} ns/lookup",
+                 cacheNanos / LOOKUPS, mapNanos / LOOKUPS);
+    }
+
+    private static Ethernet arpRequest(int host, short vlan) {
+        ARP arp = new ARP();
+        arp.setHardwareType(ARP.HW_TYPE_ETHERNET)
+            .setProtocolType(ARP.PROTO_TYPE_IP)
+            .setHardwareAddressLength((byte) Ethernet.DATALAYER_ADDRESS_LENGTH)
+            .setProtocolAddressLength((byte) 4)
+            .setOpCode(ARP.OP_REQUEST)
+            .setSenderHardwareAddress(MacAddress.valueOf(host).toBytes())
+            .setSenderProtocolAddress(Ip4Address.valueOf(ip(host)).toOctets())
+            .setTargetHardwareAddress(MacAddress.ZERO.toBytes())
+            .setTargetProtocolAddress(Ip4Address.valueOf(ip(0)).toOctets());
+        Ethernet eth = new Ethernet();
+        eth.setSourceMACAddress(MacAddress.valueOf(host))
+            .setDestinationMACAddress(MacAddress.BROADCAST)
+            .setEtherType(Ethernet.TYPE_ARP)
+            .setVlanID(vlan)
+            .setPayload(arp);
+        return eth;
+    }
+
+    /**
+     * Checks the template writes the same reply as the packet library.
+     */
+    @Test
+    public void replyTemplate() {
+        for (int host = 1; host < 16; host++) {
+            Ethernet request = arpRequest(host, Ethernet.VLAN_UNTAGGED);
+            assertTrue(ArpReplyTemplate.applies(request));
+            byte[] expected = ARP.buildArpReply(Ip4Address.valueOf(ip(0)), MacAddress.valueOf(0xabcdefL), request)
+                .serialize();
+            assertArrayEquals(expected, ArpReplyTemplate.reply(ip(0), 0xabcdefL, request).array());
+        }
+        assertFalse(ArpReplyTemplate.applies(arpRequest(1, (short) 10)));
+    }
+
+    /**
+     * Compares the replies per second and the bytes allocated per reply of the
+     * template with building and serializing the reply packets. Only run with
+     * -Dperf=true; the replies are checked by {@link #replyTemplate}.
+     */
+    @Test
+    public void replyPathAllocations() {
+        assumeTrue(Boolean.getBoolean("perf"));
+        Ethernet[] requests = new Ethernet[HOSTS];
+        for (int host = 0; host < HOSTS; host++) {
+            requests[host] = arpRequest(host + 1, Ethernet.VLAN_UNTAGGED);
+        }
+        long length = 0;
+        for (int round = 0; round < 2; round++) {
+            // The first round only warms up both paths.
+            length += measureReplies("buildArpReply", n -> ByteBuffer.wrap(
+                ARP.buildArpReply(Ip4Address.valueOf(ip(0)), MacAddress.valueOf(0xabcdefL), requests[n % HOSTS])
+                    .serialize()));
+            length += measureReplies("template", n -> ArpReplyTemplate.reply(ip(0), 0xabcdefL, requests[n % HOSTS]));
+        }
+        assertEquals(4L * LOOKUPS * ArpReplyTemplate.LENGTH, length);
+    }
+
+    // Bytes allocated by the current thread so far, or 0 if the JVM does not count them.
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        return threads instanceof com.sun.management.ThreadMXBean
+            ? ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId())
+            : 0;
+    }
 
+    private long measureReplies(String path, IntFunction<ByteBuffer> replies) {
+        long length = 0;
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int n = 0; n < LOOKUPS; n++) {
+            length += replies.apply(n).remaining();
+        }
+        long elapsed = System.nanoTime() - start;
+        bytes = allocatedBytes() - bytes;
+        log.info("{}: {} replies/s, {} bytes allocated/reply", path,
+                 LOOKUPS * 1000000000L / Math.max(1, elapsed), bytes / LOOKUPS);
+        return length;
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2022-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.winlab.ProxyArp;
+
+import static nctu.winlab.ProxyArp.ProxyArpTestHarness.advertisement;
+import static nctu.winlab.ProxyArp.ProxyArpTestHarness.arpReply;
+import static nctu.winlab.ProxyArp.ProxyArpTestHarness.arpRequest;
+import static nctu.winlab.ProxyArp.ProxyArpTestHarness.host;
+import static nctu.winlab.ProxyArp.ProxyArpTestHarness.ip4;
+import static nctu.winlab.ProxyArp.ProxyArpTestHarness.ip6;
+import static nctu.winlab.ProxyArp.ProxyArpTestHarness.mac;
+import static nctu.winlab.ProxyArp.ProxyArpTestHarness.outPort;
+import static nctu.winlab.ProxyArp.ProxyArpTestHarness.parse;
+import static nctu.winlab.ProxyArp.ProxyArpTestHarness.solicitation;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.packet.ARP;
+import org.onlab.packet.DeserializationException;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.ICMP6;
+import org.onlab.packet.Ip6Address;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.ndp.NeighborAdvertisement;
+import org.onosproject.net.Host;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.host.HostEvent;
+import org.onosproject.net.packet.OutboundPacket;
+
+/**
+ * Tests of the packet processor and host listener of the proxy ARP component.
+ */
+public class ProxyArpProcessorTest {
+
+    private ProxyArpTestHarness harness;
+
+    @Before
+    public void setUp() {
+        harness = new ProxyArpTestHarness();
+    }
+
+    @After
+    public void tearDown() {
+        harness.deactivate();
+    }
+
+    /**
+     * Checks an emitted packet is an ARP reply out of the given port
+     * announcing the MAC address of a host.
+     */
+    private static void assertArpReply(OutboundPacket packet, int port, int host) throws DeserializationException {
+        assertEquals(PortNumber.portNumber(port), outPort(packet));
+        Ethernet eth = parse(packet.data());
+        ARP arp = (ARP) eth.getPayload();
+        assertEquals(ARP.OP_REPLY, arp.getOpCode());
+        assertEquals(mac(host), MacAddress.valueOf(arp.getSenderHardwareAddress()));
+    }
+
+    /**
+     * Checks an emitted packet is a neighbor advertisement out of the given
+     * port, from a host to another one.
+     */
+    private static void assertAdvertisement(OutboundPacket packet, int port, int host, int requester)
+            throws DeserializationException {
+        assertEquals(PortNumber.portNumber(port), outPort(packet));
+        Ethernet eth = parse(packet.data());
+        assertEquals(mac(host), eth.getSourceMAC());
+        assertEquals(mac(requester), eth.getDestinationMAC());
+        ICMP6 icmp6 = (ICMP6) eth.getPayload().getPayload();
+        assertEquals(ICMP6.NEIGHBOR_ADVERTISEMENT, icmp6.getIcmpType());
+        NeighborAdvertisement advertisement = (NeighborAdvertisement) icmp6.getPayload();
+        assertEquals(ip6(host), Ip6Address.valueOf(advertisement.getTargetAddress()));
+    }
+
+    /**
+     * Checks the hosts known before the activation are answered from the first
+     * request on, without flooding.
+     */
+    @Test
+    public void hostWarmUp() throws DeserializationException {
+        harness.hostService.hosts.add(host(1, 1, ip4(1)));
+        harness.activate();
+
+        harness.process(2, arpRequest(2, 1));
+        assertEquals(0, harness.flooded());
+        assertEquals(0, harness.component.floods());
+        assertEquals(1, harness.emitted().size());
+        assertArpReply(harness.emitted().get(0), 2, 1);
+    }
+
+    /**
+     * Checks the bindings follow the hosts moving and leaving: a reply is
+     * passed on to the new location of the requester, and a removed host is
+     * resolved by flooding again.
+     */
+    @Test
+    public void hostMovedAndRemoved() throws DeserializationException {
+        Host host = host(1, 1, ip4(1));
+        harness.hostService.hosts.add(host);
+        harness.activate();
+
+        Host moved = host(1, 3, ip4(1));
+        harness.post(new HostEvent(HostEvent.Type.HOST_MOVED, moved, host));
+        harness.process(2, arpReply(2, 1));
+        assertEquals(1, harness.emitted().size());
+        assertEquals(PortNumber.portNumber(3), outPort(harness.emitted().get(0)));
+
+        harness.post(new HostEvent(HostEvent.Type.HOST_REMOVED, moved));
+        harness.process(4, arpRequest(4, 1));
+        assertEquals(1, harness.flooded());
+        assertEquals(1, harness.emitted().size());
+    }
+
+    /**
+     * Checks concurrent requests for an unknown target flood once, and the
+     * first ARP of the target answers every requester once instead of being
+     * passed on.
+     */
+    @Test
+    public void waitersAnsweredOnResolution() throws DeserializationException {
+        harness.activate();
+
+        harness.process(2, arpRequest(2, 5));
+        harness.process(3, arpRequest(3, 5));
+        harness.process(3, arpRequest(3, 5));
+        assertEquals(1, harness.flooded());
+        assertEquals(1, harness.component.floods());
+        assertEquals(2, harness.component.floodsSuppressed());
+        assertEquals(0, harness.emitted().size());
+
+        harness.process(5, arpReply(5, 2));
+        assertEquals(2, harness.emitted().size());
+        assertArpReply(harness.emitted().get(0), 2, 5);
+        assertArpReply(harness.emitted().get(1), 3, 5);
+
+        // Resolved, so later requests are answered from the cache.
+        harness.process(4, arpRequest(4, 5));
+        assertEquals(1, harness.flooded());
+        assertArpReply(harness.emitted().get(2), 4, 5);
+    }
+
+    /**
+     * Checks a solicitation for an unknown neighbor floods and binds its
+     * sender from the source link-layer option, and the advertisement of the
+     * neighbor answers it from the target link-layer option.
+     */
+    @Test
+    public void neighborSolicitationAndAdvertisement() throws DeserializationException {
+        harness.activate();
+
+        harness.process(2, solicitation(2, 5, true));
+        assertEquals(1, harness.flooded());
+        assertEquals(1, harness.component.floods());
+
+        harness.process(5, advertisement(5, 2));
+        assertEquals(1, harness.emitted().size());
+        assertAdvertisement(harness.emitted().get(0), 2, 5, 2);
+
+        // Both neighbors are bound now and answered without flooding.
+        harness.process(3, solicitation(3, 5, true));
+        harness.process(3, solicitation(3, 2, true));
+        assertEquals(1, harness.flooded());
+        assertAdvertisement(harness.emitted().get(1), 3, 5, 3);
+        assertAdvertisement(harness.emitted().get(2), 3, 2, 3);
+    }
+
+    /**
+     * Checks a solicitation without a source link-layer option does not bind
+     * its sender, whatever the frame source address.
+     */
+    @Test
+    public void solicitationWithoutLinkLayerOption() throws DeserializationException {
+        harness.activate();
+
+        harness.process(2, solicitation(2, 5, false));
+        harness.process(3, solicitation(3, 2, true));
+        assertEquals(2, harness.flooded());
+        assertEquals(0, harness.emitted().size());
+    }
+}
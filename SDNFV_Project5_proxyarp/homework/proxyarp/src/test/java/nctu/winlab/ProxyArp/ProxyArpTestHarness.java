@@ -0,0 +1,341 @@
+/*
+ * Copyright 2022-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.winlab.ProxyArp;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import org.onlab.metrics.MetricsManager;
+import org.onlab.packet.ARP;
+import org.onlab.packet.DeserializationException;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.ICMP6;
+import org.onlab.packet.IPacket;
+import org.onlab.packet.IPv6;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.Ip6Address;
+import org.onlab.packet.IpAddress;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.VlanId;
+import org.onlab.packet.ndp.NeighborAdvertisement;
+import org.onlab.packet.ndp.NeighborDiscoveryOptions;
+import org.onlab.packet.ndp.NeighborSolicitation;
+import org.onosproject.cfg.ComponentConfigAdapter;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.CoreServiceAdapter;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DefaultHost;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Host;
+import org.onosproject.net.HostId;
+import org.onosproject.net.HostLocation;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.edge.EdgePortServiceAdapter;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.flow.instructions.Instruction;
+import org.onosproject.net.flow.instructions.Instructions.OutputInstruction;
+import org.onosproject.net.host.HostEvent;
+import org.onosproject.net.host.HostListener;
+import org.onosproject.net.host.HostServiceAdapter;
+import org.onosproject.net.intent.IntentServiceAdapter;
+import org.onosproject.net.packet.DefaultInboundPacket;
+import org.onosproject.net.packet.DefaultOutboundPacket;
+import org.onosproject.net.packet.DefaultPacketContext;
+import org.onosproject.net.packet.OutboundPacket;
+import org.onosproject.net.packet.PacketProcessor;
+import org.onosproject.net.packet.PacketServiceAdapter;
+import org.onosproject.net.provider.ProviderId;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * Proxy ARP component wired to adapter services, driving ARP and neighbor
+ * discovery frames through its packet processor.
+ * <p>
+ * Host {@code n} has the MAC address {@code n}, the addresses 10.0.0.n and
+ * 2001:db8::n, and is attached to port {@code n} of {@link #DEVICE}. Frames
+ * are serialized and parsed again before they are processed, as they would
+ * be when punted by a switch.
+ */
+final class ProxyArpTestHarness {
+
+    static final DeviceId DEVICE = DeviceId.deviceId("of:0000000000000001");
+
+    final AppComponent component = new AppComponent();
+    final TestPacketService packetService = new TestPacketService();
+    final TestEdgePortService edgePortService = new TestEdgePortService();
+    final TestHostService hostService = new TestHostService();
+
+    ProxyArpTestHarness() {
+        component.coreService = new TestCoreService();
+        component.cfgService = new ComponentConfigAdapter();
+        component.metricsService = new MetricsManager();
+        component.intentService = new IntentServiceAdapter();
+        component.packetService = packetService;
+        component.edgePortService = edgePortService;
+        component.hostService = hostService;
+    }
+
+    void activate() {
+        component.activate(null);
+    }
+
+    void deactivate() {
+        component.deactivate();
+    }
+
+    static ConnectPoint cp(int port) {
+        return new ConnectPoint(DEVICE, PortNumber.portNumber(port));
+    }
+
+    static MacAddress mac(int host) {
+        return MacAddress.valueOf(host);
+    }
+
+    static Ip4Address ip4(int host) {
+        return Ip4Address.valueOf(Ip4Address.valueOf("10.0.0.0").toInt() + host);
+    }
+
+    static Ip6Address ip6(int host) {
+        byte[] octets = Ip6Address.valueOf("2001:db8::").toOctets();
+        octets[Ip6Address.BYTE_LENGTH - 1] = (byte) host;
+        return Ip6Address.valueOf(octets);
+    }
+
+    /**
+     * Returns host {@code n} of the host service, attached to the given port.
+     *
+     * @param host host number
+     * @param port port the host is attached to
+     * @param ips addresses of the host
+     * @return host
+     */
+    static Host host(int host, int port, IpAddress... ips) {
+        return new DefaultHost(new ProviderId("of", "test"), HostId.hostId(mac(host)), mac(host), VlanId.NONE,
+                               new HostLocation(DEVICE, PortNumber.portNumber(port), 0), ImmutableSet.copyOf(ips));
+    }
+
+    /**
+     * Builds an ARP request from a host for the address of another one.
+     *
+     * @param sender requesting host
+     * @param target requested host
+     * @return frame
+     */
+    static Ethernet arpRequest(int sender, int target) {
+        return arp(ARP.OP_REQUEST, sender, MacAddress.ZERO, target, MacAddress.BROADCAST);
+    }
+
+    /**
+     * Builds the ARP reply of a host to the request of another one.
+     *
+     * @param sender replying host
+     * @param target requesting host
+     * @return frame
+     */
+    static Ethernet arpReply(int sender, int target) {
+        return arp(ARP.OP_REPLY, sender, mac(target), target, mac(target));
+    }
+
+    private static Ethernet arp(short opCode, int sender, MacAddress targetMac, int target, MacAddress dst) {
+        ARP arp = new ARP();
+        arp.setHardwareType(ARP.HW_TYPE_ETHERNET)
+            .setProtocolType(ARP.PROTO_TYPE_IP)
+            .setHardwareAddressLength((byte) Ethernet.DATALAYER_ADDRESS_LENGTH)
+            .setProtocolAddressLength((byte) Ip4Address.BYTE_LENGTH)
+            .setOpCode(opCode)
+            .setSenderHardwareAddress(mac(sender).toBytes())
+            .setSenderProtocolAddress(ip4(sender).toOctets())
+            .setTargetHardwareAddress(targetMac.toBytes())
+            .setTargetProtocolAddress(ip4(target).toOctets());
+        Ethernet eth = new Ethernet();
+        eth.setSourceMACAddress(mac(sender))
+            .setDestinationMACAddress(dst)
+            .setEtherType(Ethernet.TYPE_ARP)
+            .setPayload(arp);
+        return eth;
+    }
+
+    /**
+     * Builds a neighbor solicitation from a host for the address of another one.
+     *
+     * @param sender soliciting host
+     * @param target solicited host
+     * @param sourceLinkLayer whether the source link-layer address option is included
+     * @return frame
+     */
+    static Ethernet solicitation(int sender, int target, boolean sourceLinkLayer) {
+        NeighborSolicitation solicitation = new NeighborSolicitation();
+        solicitation.setTargetAddress(ip6(target).toOctets());
+        if (sourceLinkLayer) {
+            solicitation.addOption(NeighborDiscoveryOptions.TYPE_SOURCE_LL_ADDRESS, mac(sender).toBytes());
+        }
+        byte[] solicitedNode = IPv6.getSolicitNodeAddress(ip6(target).toOctets());
+        return icmp6(ICMP6.NEIGHBOR_SOLICITATION, solicitation, sender, Ip6Address.valueOf(solicitedNode),
+                     MacAddress.valueOf(IPv6.getMCastMacAddress(solicitedNode)));
+    }
+
+    /**
+     * Builds the neighbor advertisement of a host answering the solicitation
+     * of another one.
+     *
+     * @param sender advertising host
+     * @param target soliciting host
+     * @return frame
+     */
+    static Ethernet advertisement(int sender, int target) {
+        NeighborAdvertisement advertisement = new NeighborAdvertisement();
+        advertisement.setTargetAddress(ip6(sender).toOctets());
+        advertisement.setSolicitedFlag((byte) 1);
+        advertisement.addOption(NeighborDiscoveryOptions.TYPE_TARGET_LL_ADDRESS, mac(sender).toBytes());
+        return icmp6(ICMP6.NEIGHBOR_ADVERTISEMENT, advertisement, sender, ip6(target), mac(target));
+    }
+
+    private static Ethernet icmp6(byte type, IPacket message, int sender, Ip6Address dstIp, MacAddress dstMac) {
+        ICMP6 icmp6 = new ICMP6();
+        icmp6.setIcmpType(type);
+        icmp6.setIcmpCode((byte) 0);
+        icmp6.setPayload(message);
+        IPv6 ipv6 = new IPv6();
+        ipv6.setSourceAddress(ip6(sender).toOctets());
+        ipv6.setDestinationAddress(dstIp.toOctets());
+        ipv6.setNextHeader(IPv6.PROTOCOL_ICMP6);
+        ipv6.setHopLimit((byte) 255);
+        ipv6.setPayload(icmp6);
+        Ethernet eth = new Ethernet();
+        eth.setSourceMACAddress(mac(sender))
+            .setDestinationMACAddress(dstMac)
+            .setEtherType(Ethernet.TYPE_IPV6)
+            .setPayload(ipv6);
+        return eth;
+    }
+
+    static Ethernet parse(ByteBuffer data) throws DeserializationException {
+        byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        return Ethernet.deserializer().deserialize(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Hands a frame received on a port to the processor.
+     *
+     * @param port ingress port
+     * @param eth frame
+     * @throws DeserializationException if the frame cannot be parsed back
+     */
+    void process(int port, Ethernet eth) throws DeserializationException {
+        ByteBuffer data = ByteBuffer.wrap(eth.serialize());
+        packetService.processor.process(new DefaultPacketContext(System.currentTimeMillis(),
+                new DefaultInboundPacket(cp(port), parse(data), data),
+                new DefaultOutboundPacket(DEVICE, null, data), false) {
+            @Override
+            public void send() {
+            }
+        });
+    }
+
+    /**
+     * Delivers a host event to the listener of the component.
+     *
+     * @param event host event
+     */
+    void post(HostEvent event) {
+        hostService.listeners.forEach(listener -> listener.event(event));
+    }
+
+    /**
+     * Returns the packets emitted to single ports.
+     *
+     * @return emitted packets
+     */
+    List<OutboundPacket> emitted() {
+        return packetService.emitted;
+    }
+
+    /**
+     * Returns the number of frames emitted to all edge ports.
+     *
+     * @return flooded frames
+     */
+    int flooded() {
+        return edgePortService.flooded.size();
+    }
+
+    static PortNumber outPort(OutboundPacket packet) {
+        for (Instruction instruction : packet.treatment().allInstructions()) {
+            if (instruction instanceof OutputInstruction) {
+                return ((OutputInstruction) instruction).port();
+            }
+        }
+        return null;
+    }
+
+    static class TestCoreService extends CoreServiceAdapter {
+        @Override
+        public ApplicationId registerApplication(String name) {
+            return new DefaultApplicationId(1, name);
+        }
+    }
+
+    static class TestPacketService extends PacketServiceAdapter {
+        private final List<OutboundPacket> emitted = Lists.newCopyOnWriteArrayList();
+        private PacketProcessor processor;
+
+        @Override
+        public void addProcessor(PacketProcessor processor, int priority) {
+            this.processor = processor;
+        }
+
+        @Override
+        public void emit(OutboundPacket packet) {
+            emitted.add(packet);
+        }
+    }
+
+    static class TestEdgePortService extends EdgePortServiceAdapter {
+        private final List<ByteBuffer> flooded = Lists.newCopyOnWriteArrayList();
+
+        @Override
+        public void emitPacket(ByteBuffer data, Optional<TrafficTreatment> treatment) {
+            flooded.add(data);
+        }
+    }
+
+    static class TestHostService extends HostServiceAdapter {
+        final Set<Host> hosts = Sets.newHashSet();
+        private final List<HostListener> listeners = Lists.newCopyOnWriteArrayList();
+
+        @Override
+        public Iterable<Host> getHosts() {
+            return hosts;
+        }
+
+        @Override
+        public void addListener(HostListener listener) {
+            listeners.add(listener);
+        }
+
+        @Override
+        public void removeListener(HostListener listener) {
+            listeners.remove(listener);
+        }
+    }
+}